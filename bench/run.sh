@@ -0,0 +1,20 @@
+#!/bin/sh
+# Build and run a benchmark on a plain JVM (see README.md)
+# Usage: JSON_JAR=/path/to/json.jar [BENCH=CommandPathBench|LoopbackLoadBench|BotSimulatorServer] bench/run.sh [options...]
+set -e
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+OUT="$ROOT/bench/out"
+if [ -z "$JSON_JAR" ] || [ ! -f "$JSON_JAR" ]; then
+	echo "Set JSON_JAR to an org.json jar (Android's org.json API is not available on a plain JVM)" >&2
+	exit 1
+fi
+CP="$ROOT/libs/jeromq-0.3.0-SNAPSHOT.jar:$JSON_JAR"
+BENCH=${BENCH:-CommandPathBench}
+
+# Compile benchmarks and the app classes they reach (not the Android UI), with host shims for android.util.Log and android.os.Looper
+rm -rf "$OUT"
+mkdir -p "$OUT"
+javac -nowarn -d "$OUT" -cp "$CP" -sourcepath "$ROOT/bench/src:$ROOT/bench/shims:$ROOT/src" \
+	"$ROOT/bench/src/edu/ncsu/ieee/botcontrol/$BENCH.java"
+
+java -cp "$OUT:$CP" "edu.ncsu.ieee.botcontrol.$BENCH" "$@"
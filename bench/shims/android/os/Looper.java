@@ -0,0 +1,12 @@
+package android.os;
+
+/** Host (plain JVM) stand-in for Android's Looper: there is no main looper, so every thread counts as "main" (see ZMQThread.term()). */
+public final class Looper {
+	public static Looper myLooper() {
+		return null;
+	}
+	
+	public static Looper getMainLooper() {
+		return null;
+	}
+}
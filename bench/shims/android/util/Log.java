@@ -0,0 +1,53 @@
+package android.util;
+
+/**
+ * Host (plain JVM) stand-in for Android's Log, so that app classes can run in benchmarks.
+ * Quiet by default; run with -Dbench.log=true to print messages to stderr.
+ */
+public final class Log {
+	public static final int VERBOSE = 2;
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+	
+	private static final boolean enabled = Boolean.getBoolean("bench.log");
+	
+	private static int println(String level, String tag, String msg) {
+		if (enabled)
+			System.err.println(level + "/" + tag + ": " + msg);
+		return 0;
+	}
+	
+	public static boolean isLoggable(String tag, int level) {
+		return enabled;
+	}
+	
+	public static int v(String tag, String msg) {
+		return println("V", tag, msg);
+	}
+	
+	public static int d(String tag, String msg) {
+		return println("D", tag, msg);
+	}
+	
+	public static int i(String tag, String msg) {
+		return println("I", tag, msg);
+	}
+	
+	public static int w(String tag, String msg) {
+		return println("W", tag, msg);
+	}
+	
+	public static int w(String tag, String msg, Throwable tr) {
+		return println("W", tag, msg + ": " + tr);
+	}
+	
+	public static int e(String tag, String msg) {
+		return println("E", tag, msg);
+	}
+	
+	public static int e(String tag, String msg, Throwable tr) {
+		return println("E", tag, msg + ": " + tr);
+	}
+}
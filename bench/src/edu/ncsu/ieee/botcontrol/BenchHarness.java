@@ -0,0 +1,160 @@
+package edu.ncsu.ieee.botcontrol;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal microbenchmark harness (JMH-style: warmup, then timed iterations; reports ns/op and allocated bytes/op).
+ *
+ * Allocation is measured with HotSpot's per-thread allocation counter (com.sun.management.ThreadMXBean), if available;
+ * it only covers the benchmark thread, not helper threads a benchmark may start. A benchmark can be given an allocation budget
+ * (e.g. 0 for a path that must not allocate in steady state); run() counts the benchmarks that exceed theirs.
+ */
+public class BenchHarness {
+	/** A benchmarked operation. */
+	public static abstract class Benchmark {
+		public final String name;
+		public final double maxBytesPerOp; ///< Allocation budget; negative for none
+		
+		protected Benchmark(String name) {
+			this(name, -1);
+		}
+		
+		protected Benchmark(String name, double maxBytesPerOp) {
+			this.name = name;
+			this.maxBytesPerOp = maxBytesPerOp;
+		}
+		
+		/** Called once before warmup. */
+		public void setUp() throws Exception {
+		}
+		
+		/** Called once after measurement. */
+		public void tearDown() throws Exception {
+		}
+		
+		/** Run the operation once; return something derived from its result, so that it can't be optimized away. */
+		public abstract int op() throws Exception;
+	}
+	
+	private static final int OPS_PER_CHECK = 256; // ops between clock reads
+	private static final double BYTES_TOLERANCE = 0.05; // B/op; allowance for one-off allocations during measurement (e.g. by the JIT)
+	
+	private static volatile int sink; // consumes op() results
+	
+	private final long warmupMillis;
+	private final int iterations;
+	private final long iterationMillis;
+	private final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+	
+	private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	private final Method allocatedBytes; // com.sun.management.ThreadMXBean.getThreadAllocatedBytes(long), or null
+	
+	public BenchHarness(long warmupMillis, int iterations, long iterationMillis) {
+		this.warmupMillis = warmupMillis;
+		this.iterations = iterations;
+		this.iterationMillis = iterationMillis;
+		
+		Method method = null;
+		try {
+			method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+			method.invoke(threadBean, Thread.currentThread().getId());
+		} catch (Exception e) {
+			method = null; // not HotSpot; skip allocation figures
+		}
+		allocatedBytes = method;
+	}
+	
+	public void add(Benchmark benchmark) {
+		benchmarks.add(benchmark);
+	}
+	
+	/**
+	 * Run benchmarks whose names contain any of given filters (all if none), printing one result line each.
+	 * Returns the no. of benchmarks that allocated more than their budget (not checked if allocation can't be measured).
+	 */
+	public int run(List<String> filters) throws Exception {
+		System.out.println(String.format("%-40s %12s %10s %12s", "Benchmark", "ns/op", "+/-", "B/op"));
+		int overBudget = 0;
+		for (Benchmark benchmark : benchmarks) {
+			if (!matches(benchmark.name, filters))
+				continue;
+			benchmark.setUp();
+			try {
+				if (!measure(benchmark))
+					overBudget++;
+			} finally {
+				benchmark.tearDown();
+			}
+		}
+		return overBudget;
+	}
+	
+	/** Measure and print given benchmark; returns false if it exceeded its allocation budget. */
+	private boolean measure(Benchmark benchmark) throws Exception {
+		// Warmup (let the JIT settle)
+		runFor(benchmark, warmupMillis);
+		
+		// Timed iterations
+		double[] nanosPerOp = new double[iterations];
+		long totalOps = 0;
+		long startBytes = allocated();
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			long ops = runFor(benchmark, iterationMillis);
+			nanosPerOp[i] = (double) (System.nanoTime() - start) / ops;
+			totalOps += ops;
+		}
+		long bytes = allocated() - startBytes;
+		
+		double mean = 0;
+		for (double value : nanosPerOp)
+			mean += value;
+		mean /= iterations;
+		double variance = 0;
+		for (double value : nanosPerOp)
+			variance += (value - mean) * (value - mean);
+		double error = (iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0);
+		String bytesPerOp = (startBytes >= 0 ? String.format("%.1f", (double) bytes / totalOps) : "n/a");
+		boolean withinBudget = (startBytes < 0 || benchmark.maxBytesPerOp < 0 || (double) bytes / totalOps <= benchmark.maxBytesPerOp + BYTES_TOLERANCE);
+		System.out.println(String.format("%-40s %12.1f %10.1f %12s", benchmark.name, mean, error, bytesPerOp)
+				+ (withinBudget ? "" : "  OVER BUDGET (max. " + benchmark.maxBytesPerOp + " B/op)"));
+		return withinBudget;
+	}
+	
+	private long runFor(Benchmark benchmark, long millis) throws Exception {
+		long deadline = System.nanoTime() + millis * 1000000L;
+		long ops = 0;
+		int result = 0;
+		do {
+			for (int i = 0; i < OPS_PER_CHECK; i++)
+				result += benchmark.op();
+			ops += OPS_PER_CHECK;
+		} while (System.nanoTime() < deadline);
+		sink += result;
+		return ops;
+	}
+	
+	private long allocated() {
+		if (allocatedBytes == null)
+			return -1;
+		try {
+			return (Long) allocatedBytes.invoke(threadBean, Thread.currentThread().getId());
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+	
+	private static boolean matches(String name, List<String> filters) {
+		if (filters.isEmpty())
+			return true;
+		for (String filter : filters) {
+			if (name.contains(filter))
+				return true;
+		}
+		return false;
+	}
+}
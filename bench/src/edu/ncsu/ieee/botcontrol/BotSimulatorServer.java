@@ -0,0 +1,66 @@
+package edu.ncsu.ieee.botcontrol;
+
+/**
+ * Runs a BotSimulator behind a ZMQServerThread on a plain JVM, as a stand-in bot for the app (on a device or emulator) or other
+ * clients. Prints simulator state and request/publish rates every few seconds; stop with Ctrl-C.
+ *
+ * Usage: BotSimulatorServer [--bind host] [--port n] [--pub-port n] [--workers n] [--delay ms] [--jitter ms | --tail alpha]
+ *                           [--turret Hz] [--ir Hz]
+ * See bench/README.md for how to build and run on a plain JVM.
+ */
+public class BotSimulatorServer {
+	private static final int REPORT_INTERVAL = 5; // s
+	
+	public static void main(String[] args) throws Exception {
+		String host = "0.0.0.0";
+		int port = ZMQServerThread.SERVER_PORT;
+		int pubPort = BotSimulator.PUB_PORT;
+		int workers = 1;
+		long delay = 0; // ms
+		long jitter = 0; // ms
+		double tail = 0; // heavy-tail index; 0: none
+		int turretRate = 10, irRate = 10; // Hz
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			String value = (i + 1 < args.length ? args[++i] : "");
+			if (arg.equals("--bind")) host = value;
+			else if (arg.equals("--port")) port = Integer.parseInt(value);
+			else if (arg.equals("--pub-port")) pubPort = Integer.parseInt(value);
+			else if (arg.equals("--workers")) workers = Integer.parseInt(value);
+			else if (arg.equals("--delay")) delay = Long.parseLong(value);
+			else if (arg.equals("--jitter")) jitter = Long.parseLong(value);
+			else if (arg.equals("--tail")) tail = Double.parseDouble(value);
+			else if (arg.equals("--turret")) turretRate = Integer.parseInt(value);
+			else if (arg.equals("--ir")) irRate = Integer.parseInt(value);
+			else {
+				System.err.println("Unknown option: " + arg);
+				System.exit(1);
+			}
+		}
+		
+		BotSimulator sim = new BotSimulator();
+		sim.setPublishAddress(host, pubPort);
+		sim.setPublishRates(turretRate, irRate);
+		sim.start();
+		
+		ZMQServerThread server = new ZMQServerThread();
+		server.setBindAddress(host, port);
+		server.setWorkerCount(workers);
+		server.setDelayModel(tail > 0 ? ZMQServerThread.DelayModel.heavyTail(Math.max(1, delay), tail, 50 * Math.max(1, delay))
+				: jitter > 0 ? ZMQServerThread.DelayModel.jittered(delay, jitter) : ZMQServerThread.DelayModel.fixed(delay));
+		server.setOnRequestListenerFactory(sim);
+		server.start();
+		System.out.println("Simulated bot: requests on " + host + ":" + port + " (" + workers + " worker(s), delay: " + server.getDelayModel()
+				+ "), telemetry on " + host + ":" + pubPort + " (turret: " + turretRate + " Hz, ir: " + irRate + " Hz)");
+		
+		long lastRequests = 0, lastPublished = 0;
+		while (true) {
+			Thread.sleep(REPORT_INTERVAL * 1000L);
+			long requests = sim.getRequestCount(), published = sim.getPublishedCount();
+			System.out.println(sim + String.format(" requests/s: %.1f, published/s: %.1f, errors: %d",
+					(requests - lastRequests) / (double) REPORT_INTERVAL, (published - lastPublished) / (double) REPORT_INTERVAL, sim.getErrorCount()));
+			lastRequests = requests;
+			lastPublished = published;
+		}
+	}
+}
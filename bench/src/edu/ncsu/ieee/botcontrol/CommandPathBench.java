@@ -0,0 +1,262 @@
+package edu.ncsu.ieee.botcontrol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+import edu.ncsu.ieee.botcontrol.ZMQClientThread.RequestReplyBundle;
+
+/**
+ * Benchmarks of the per-command path: input mapping, message building/encoding, reply checking and queue hand-off.
+ *
+ * Usage: CommandPathBench [-w warmupMs] [-i iterations] [-t iterationMs] [filter...]
+ * See bench/README.md for how to build and run on a plain JVM. Exits with status 1 if a benchmark that must not allocate
+ * (template patching and acquiring, in steady state) does, so e.g. "CommandPathBench template" doubles as an allocation check.
+ */
+public class CommandPathBench {
+	private static final String[] DRIVE_PARAMS = { "forward", "strafe" };
+	private static final String DRIVE_REPLY = "{\"type\": \"call_reply\", \"call_return\": true}";
+	private static final int NUM_INPUTS = 1024; // power of 2
+	
+	// Pre-generated inputs, cycled through so that results can't be constant-folded
+	private static final float[] inputs = new float[NUM_INPUTS];
+	static {
+		for (int i = 0; i < NUM_INPUTS; i++)
+			inputs[i] = (float) Math.sin(i * 0.37) * 1.3f; // [-1.3, 1.3], i.e. some values out of range
+	}
+	private static int next = 0;
+	
+	private static float nextInput() {
+		return inputs[next++ & (NUM_INPUTS - 1)];
+	}
+	
+	public static void main(String[] args) throws Exception {
+		long warmupMillis = 1000;
+		int iterations = 5;
+		long iterationMillis = 1000;
+		List<String> filters = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-w"))
+				warmupMillis = Long.parseLong(args[++i]);
+			else if (args[i].equals("-i"))
+				iterations = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-t"))
+				iterationMillis = Long.parseLong(args[++i]);
+			else
+				filters.add(args[i]);
+		}
+		
+		BenchHarness harness = new BenchHarness(warmupMillis, iterations, iterationMillis);
+		addInputBenchmarks(harness);
+		addMessageBenchmarks(harness);
+		addReplyBenchmarks(harness);
+		addQueueBenchmarks(harness);
+		int overBudget = harness.run(filters);
+		System.exit(overBudget > 0 ? 1 : 0); // don't wait for any lingering helper threads
+	}
+	
+	private static void addInputBenchmarks(BenchHarness harness) {
+		final ControlRange range = new ControlRange(-100.f, -25.f, 0.f, 25.f, 100.f);
+		harness.add(new BenchHarness.Benchmark("controlRange.fromNormalizedInput") {
+			@Override
+			public int op() {
+				return Float.floatToRawIntBits(range.fromNormalizedInput(nextInput()));
+			}
+		});
+		harness.add(new BenchHarness.Benchmark("controlRange.applyLimits") {
+			@Override
+			public int op() {
+				return Float.floatToRawIntBits(range.applyLimits(nextInput() * 100.f));
+			}
+		});
+		final ControlRange filteredRange = new ControlRange(-100.f, -25.f, 0.f, 25.f, 100.f);
+		filteredRange.setChangeFilter(1.f, 2.f, 0.25f);
+		harness.add(new BenchHarness.Benchmark("controlRange.filterChange") {
+			private float last = 50.f;
+			
+			@Override
+			public int op() {
+				last = filteredRange.filterChange(filteredRange.fromNormalizedInput(0.5f + nextInput() * 0.05f), last);
+				return Float.floatToRawIntBits(last);
+			}
+		});
+		
+		final float[] knob = new float[2];
+		harness.add(new BenchHarness.Benchmark("knob.clamp.circle") {
+			@Override
+			public int op() {
+				KnobLimits.clamp(KnobLimits.SHAPE_CIRCLE, nextInput(), nextInput(), knob);
+				return Float.floatToRawIntBits(knob[0]);
+			}
+		});
+		harness.add(new BenchHarness.Benchmark("knob.clamp.square") {
+			@Override
+			public int op() {
+				KnobLimits.clamp(KnobLimits.SHAPE_SQUARE, nextInput(), nextInput(), knob);
+				return Float.floatToRawIntBits(knob[0]);
+			}
+		});
+	}
+	
+	private static void addMessageBenchmarks(BenchHarness harness) {
+		harness.add(new BenchHarness.Benchmark("callReq.make") {
+			@Override
+			public int op() {
+				JSONObject cmdObj = CommandMessages.makeCallReq("driver", "move_forward_strafe", DRIVE_PARAMS, new Object[] { nextInput(), nextInput() });
+				return cmdObj.length();
+			}
+		});
+		harness.add(new BenchHarness.Benchmark("callReq.makeAndSerialize") {
+			@Override
+			public int op() {
+				JSONObject cmdObj = CommandMessages.makeCallReq("driver", "move_forward_strafe", DRIVE_PARAMS, new Object[] { nextInput(), nextInput() });
+				return cmdObj.toString().length();
+			}
+		});
+		
+		final JSONObject driveCmdObj = CommandMessages.makeCallReq("driver", "move_forward_strafe", DRIVE_PARAMS, new Object[] { 0.f, 0.f });
+		harness.add(new BenchHarness.Benchmark("callReq.setParamAndSerialize") {
+			@Override
+			public int op() {
+				CommandMessages.setCallReqParam(driveCmdObj, "forward", nextInput());
+				CommandMessages.setCallReqParam(driveCmdObj, "strafe", nextInput());
+				return driveCmdObj.toString().length();
+			}
+		});
+		
+		CommandCodec[] codecs = { new JsonCommandCodec(), new BinaryCommandCodec() };
+		for (final CommandCodec codec : codecs) {
+			harness.add(new BenchHarness.Benchmark("codec." + codec.getName() + ".encode") {
+				@Override
+				public int op() {
+					CommandMessages.setCallReqParam(driveCmdObj, "forward", nextInput());
+					return codec.encode(driveCmdObj).length;
+				}
+			});
+			
+			final CommandTemplate template = codec.compile(driveCmdObj, DRIVE_PARAMS);
+			harness.add(new BenchHarness.Benchmark("template." + codec.getName() + ".patchAcquire", 0) {
+				@Override
+				public int op() {
+					template.set(0, nextInput());
+					template.set(1, nextInput());
+					byte[] frame = template.acquire();
+					int length = frame.length;
+					template.release(frame);
+					return length;
+				}
+			});
+			
+			// What a drive command costs beyond its frame (see BotControl.sendCommand()): the request bundle and its reply listener
+			harness.add(new BenchHarness.Benchmark("template." + codec.getName() + ".request") {
+				@Override
+				public int op() {
+					template.set(0, nextInput());
+					template.set(1, nextInput());
+					final byte[] frame = template.acquire();
+					RequestReplyBundle bundle = new RequestReplyBundle(frame, "driver.move_forward_strafe");
+					bundle.addOnReplyListener(new RequestReplyBundle.OnReplyListener() {
+						@Override
+						public void onReply(RequestReplyBundle done) {
+							if (done.getReply() != null || !done.wasSent())
+								template.release(frame);
+						}
+					});
+					bundle.complete(DRIVE_REPLY);
+					return frame.length;
+				}
+			});
+		}
+	}
+	
+	private static void addReplyBenchmarks(BenchHarness harness) {
+		final ReplyReader reader = new ReplyReader();
+		harness.add(new BenchHarness.Benchmark("reply.isCallReply") {
+			@Override
+			public int op() {
+				return (CommandMessages.isCallReply(reader.reset(DRIVE_REPLY)) ? 1 : 0);
+			}
+		});
+		harness.add(new BenchHarness.Benchmark("reply.parseJSONObject") { // baseline: full parse, as replies used to be checked
+			@Override
+			public int op() throws Exception {
+				return (new JSONObject(DRIVE_REPLY).getString("type").equals("call_reply") ? 1 : 0);
+			}
+		});
+	}
+	
+	private static void addQueueBenchmarks(BenchHarness harness) {
+		final byte[] request = "{\"type\": \"call_req\"}".getBytes();
+		
+		// Same-thread offer + take: cost of the queue itself
+		final RequestQueue queue = new RequestQueue(16);
+		harness.add(new BenchHarness.Benchmark("queue.offerTake") {
+			@Override
+			public int op() throws Exception {
+				queue.offer(new RequestReplyBundle(request, null));
+				return queue.take().request.length;
+			}
+		});
+		harness.add(new BenchHarness.Benchmark("queue.offerLatestTake") {
+			@Override
+			public int op() throws Exception {
+				queue.offerLatest(new RequestReplyBundle(request, "driver.move_forward_strafe"));
+				return queue.take().request.length;
+			}
+		});
+		
+		// Cross-thread hand-off to a consumer (standing in for the client thread), which completes each request
+		harness.add(new QueueBenchmark("queue.handoff.throughput") {
+			@Override
+			public int op() {
+				RequestReplyBundle bundle = new RequestReplyBundle(request, null);
+				while (!handoffQueue.offer(bundle))
+					Thread.yield(); // queue full, let consumer catch up
+				return 1;
+			}
+		});
+		harness.add(new QueueBenchmark("queue.handoff.roundTrip") {
+			@Override
+			public int op() throws Exception {
+				RequestReplyBundle bundle = new RequestReplyBundle(request, null);
+				handoffQueue.offer(bundle);
+				return bundle.get(1, TimeUnit.SECONDS).length();
+			}
+		});
+	}
+	
+	/** Benchmark with a consumer thread that takes requests from a queue and completes them straight away (like a client thread with an instant server). */
+	private static abstract class QueueBenchmark extends BenchHarness.Benchmark {
+		protected final RequestQueue handoffQueue = new RequestQueue(ZMQClientThread.MAX_REQUESTS);
+		private Thread consumer = null;
+		
+		QueueBenchmark(String name) {
+			super(name);
+		}
+		
+		@Override
+		public void setUp() {
+			consumer = new Thread("bench-consumer") {
+				@Override
+				public void run() {
+					try {
+						while (true)
+							handoffQueue.take().complete("{\"type\": \"call_reply\"}");
+					} catch (InterruptedException e) {
+						// done
+					}
+				}
+			};
+			consumer.setDaemon(true);
+			consumer.start();
+		}
+		
+		@Override
+		public void tearDown() throws Exception {
+			consumer.interrupt();
+			consumer.join();
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package edu.ncsu.ieee.botcontrol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+import edu.ncsu.ieee.botcontrol.ZMQClientThread.RequestReplyBundle;
+
+/**
+ * End-to-end load test over a loopback link: a ZMQServerThread stands in for the bot, and a client is driven with a configurable
+ * mix of drive, turret and IR commands, each at its own fixed rate (as BotControl's control loop and IR polling would).
+ *
+ * Reports, per command stream: throughput, end-to-end latency percentiles (issue to reply), and how many commands were dropped
+ * (queue full or failed) or conflated (superseded by a newer command on the same channel before being sent).
+ *
+ * Usage: LoopbackLoadBench [--duration s] [--drive Hz] [--turret Hz] [--ir Hz] [--client plain|pipelined] [--in-flight n]
+ *                          [--codec json|binary] [--batch windowMs] [--delay ms] [--jitter ms | --tail alpha] [--workers n] [--port n] [--sim]
+ *                          [--timeout ms] [--estop Hz] [--ttl ms]
+ * --sim answers with a BotSimulator (stateful, realistic replies) instead of canned replies.
+ * --delay is the server's fixed response delay, the mean with --jitter, or the minimum of a heavy-tailed delay with --tail.
+ * --timeout is the client's request timeout; slower replies make the client reconnect and resend (all streams here are idempotent).
+ * --estop adds a stream of emergency stops (neutral drive, as on E-stop or release), which jump the queue and flush pending commands.
+ * --ttl gives drive, turret and IR commands a deadline: commands still queued after this long are discarded (counted as dropped).
+ * See bench/README.md for how to build and run on a plain JVM.
+ */
+public class LoopbackLoadBench {
+	private static final String CALL_REPLY = "{\"type\": \"call_reply\", \"call_return\": true}";
+	private static final String IR_REPLY = "{\"type\": \"call_reply\", \"call_return\": {\"time\": 0.0, \"fresh\": true, \"readings\": "
+			+ "{\"front\": [0.1, 0.2, 0.3], \"back\": [0.1, 0.2, 0.3], \"left\": [0.1, 0.2, 0.3], \"right\": [0.1, 0.2, 0.3]}}}";
+	
+	/** One stream of commands of the same kind, sent at a fixed rate. */
+	private static class Stream implements Runnable {
+		final String label;
+		final int rate; // Hz
+		final CommandTemplate template;
+		final String channel; // conflation channel, or null for plain FIFO requests
+		final int priority;
+		final ZMQClientThread client;
+		
+		final LatencyHistogram latency = new LatencyHistogram(); // issue -> reply
+		final AtomicLong issued = new AtomicLong();
+		final AtomicLong completed = new AtomicLong();
+		final AtomicLong dropped = new AtomicLong();
+		private int tick = 0; // only used on the load thread
+		
+		Stream(String label, int rate, CommandTemplate template, String channel, int priority, ZMQClientThread client) {
+			this.label = label;
+			this.rate = rate;
+			this.template = template;
+			this.channel = channel;
+			this.priority = priority;
+			this.client = client;
+		}
+		
+		@Override
+		public void run() {
+			// Vary slot values like a moving stick would (stops stay neutral)
+			tick++;
+			if (priority != RequestQueue.PRIORITY_EMERGENCY) {
+				template.set(0, (float) Math.sin(tick * 0.05) * 100.f);
+				if (channel != null)
+					template.set(1, (float) Math.cos(tick * 0.05) * 100.f);
+			}
+			
+			final byte[] frame = template.acquire();
+			final long issueTime = System.nanoTime();
+			issued.incrementAndGet();
+			RequestReplyBundle bundle = (channel != null ? client.serviceRequestLatest(channel, frame, priority)
+					: client.serviceRequestAsync(frame, label, CommandMessages.isIdempotent(label), priority));
+			bundle.addOnReplyListener(new RequestReplyBundle.OnReplyListener() {
+				@Override
+				public void onReply(RequestReplyBundle bundle) {
+					if (bundle.getReply() != null) {
+						latency.record(System.nanoTime() - issueTime);
+						completed.incrementAndGet();
+					}
+					else {
+						dropped.incrementAndGet();
+					}
+					template.release(frame);
+				}
+			});
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int duration = 10; // s
+		int driveRate = 50, turretRate = 50, irRate = 10, estopRate = 0; // Hz
+		boolean pipelined = false;
+		int maxInFlight = ZMQPipelinedClientThread.DEFAULT_MAX_IN_FLIGHT;
+		String codecName = JsonCommandCodec.NAME;
+		long batchWindow = -1; // ms; < 0: no batching
+		long delay = 0; // ms; server response delay
+		long jitter = 0; // ms
+		double tail = 0; // heavy-tail index; 0: none
+		int workers = 1;
+		boolean simulate = false;
+		int port = ZMQServerThread.SERVER_PORT;
+		long timeout = ZMQClientThread.DEFAULT_REQUEST_TIMEOUT; // ms
+		long ttl = 0; // ms; 0: no deadline
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("--sim")) { // flag, no value
+				simulate = true;
+				continue;
+			}
+			String value = (i + 1 < args.length ? args[++i] : "");
+			if (arg.equals("--duration")) duration = Integer.parseInt(value);
+			else if (arg.equals("--drive")) driveRate = Integer.parseInt(value);
+			else if (arg.equals("--turret")) turretRate = Integer.parseInt(value);
+			else if (arg.equals("--ir")) irRate = Integer.parseInt(value);
+			else if (arg.equals("--client")) pipelined = value.equals("pipelined");
+			else if (arg.equals("--in-flight")) maxInFlight = Integer.parseInt(value);
+			else if (arg.equals("--codec")) codecName = value;
+			else if (arg.equals("--batch")) batchWindow = Long.parseLong(value);
+			else if (arg.equals("--delay")) delay = Long.parseLong(value);
+			else if (arg.equals("--jitter")) jitter = Long.parseLong(value);
+			else if (arg.equals("--tail")) tail = Double.parseDouble(value);
+			else if (arg.equals("--workers")) workers = Integer.parseInt(value);
+			else if (arg.equals("--port")) port = Integer.parseInt(value);
+			else if (arg.equals("--timeout")) timeout = Long.parseLong(value);
+			else if (arg.equals("--estop")) estopRate = Integer.parseInt(value);
+			else if (arg.equals("--ttl")) ttl = Long.parseLong(value);
+			else {
+				System.err.println("Unknown option: " + arg);
+				System.exit(1);
+			}
+		}
+		CommandCodec codec = (codecName.equals(BinaryCommandCodec.NAME) ? new BinaryCommandCodec() : new JsonCommandCodec());
+		if (batchWindow >= 0 && codec instanceof BinaryCommandCodec) {
+			System.err.println("Batching is only supported with the json codec here (the stand-in server reads requests as text); disabled");
+			batchWindow = -1;
+		}
+		
+		// Bot stand-in: replies to every call (and every call in a batch) straight away, unless a delay is set
+		ZMQServerThread.DelayModel delayModel = (tail > 0 ? ZMQServerThread.DelayModel.heavyTail(Math.max(1, delay), tail, 50 * Math.max(1, delay))
+				: jitter > 0 ? ZMQServerThread.DelayModel.jittered(delay, jitter) : ZMQServerThread.DelayModel.fixed(delay));
+		ZMQServerThread server = new ZMQServerThread();
+		server.setBindAddress("127.0.0.1", port);
+		server.setWorkerCount(workers);
+		server.setDelayModel(delayModel);
+		BotSimulator sim = null;
+		if (simulate) {
+			sim = new BotSimulator();
+			sim.setPublishAddress("127.0.0.1", port + 1);
+			sim.setPublishRates(0, 0); // nobody subscribes here
+			sim.start();
+			server.setOnRequestListenerFactory(sim);
+		}
+		else {
+			server.setOnRequestListenerFactory(new ZMQServerThread.OnRequestListenerFactory() {
+				@Override
+				public ZMQServerThread.OnRequestListener createOnRequestListener(int worker) {
+					return new ZMQServerThread.OnRequestListener() {
+						private final ReplyReader reader = new ReplyReader(); // one per worker
+						
+						@Override
+						public String onRequest(String request) {
+							reader.reset(request);
+							if (!reader.isType("batch_req"))
+								return (request.contains("ir_hub") ? IR_REPLY : CALL_REPLY);
+							StringBuilder reply = new StringBuilder("{\"type\": \"batch_reply\", \"replies\": [");
+							int numCalls = reader.arrayLength(reader.field(reader.root(), "calls"));
+							for (int i = 0; i < numCalls; i++)
+								reply.append(i > 0 ? ", " : "").append(CALL_REPLY);
+							return reply.append("]}").toString();
+						}
+					};
+				}
+			});
+		}
+		server.start();
+		
+		String address = ZMQServerThread.SERVER_PROTOCOL + "://127.0.0.1:" + port;
+		ZMQClientThread client = (pipelined ? new ZMQPipelinedClientThread(address, maxInFlight) : new ZMQClientThread(address));
+		LatencyStats stats = new LatencyStats();
+		client.setLatencyStats(stats);
+		client.setRequestTimeout(timeout, ZMQClientThread.DEFAULT_MAX_RETRIES);
+		client.setTimeToLive(RequestQueue.PRIORITY_CONTROL, ttl);
+		client.setTimeToLive(RequestQueue.PRIORITY_TELEMETRY, ttl);
+		if (batchWindow >= 0)
+			client.setBatching(codec, batchWindow, 4);
+		client.start();
+		
+		// Command streams, as sent by BotControl
+		JSONObject driveCmdObj = CommandMessages.makeCallReq("driver", "move_forward_strafe", new String[] { "forward", "strafe" }, new Object[] { 0.f, 0.f });
+		JSONObject turretCmdObj = CommandMessages.makeCallReq("turret", "aim", new String[] { "yaw", "pitch" }, new Object[] { 90.f, 90.f });
+		JSONObject irCmdObj = CommandMessages.makeCallReq("ir_hub", "read_cached", new String[] { "max_staleness" }, new Object[] { 0.5f });
+		List<Stream> streams = new ArrayList<Stream>();
+		if (driveRate > 0)
+			streams.add(new Stream("driver.move_forward_strafe", driveRate, codec.compile(driveCmdObj, new String[] { "forward", "strafe" }), "driver.move_forward_strafe", RequestQueue.PRIORITY_CONTROL, client));
+		if (turretRate > 0)
+			streams.add(new Stream("turret.aim", turretRate, codec.compile(turretCmdObj, new String[] { "yaw", "pitch" }), "turret.aim", RequestQueue.PRIORITY_CONTROL, client));
+		if (irRate > 0)
+			streams.add(new Stream("ir_hub.read_cached", irRate, codec.compile(irCmdObj, new String[] { "max_staleness" }), null, RequestQueue.PRIORITY_TELEMETRY, client));
+		if (estopRate > 0)
+			streams.add(new Stream("estop", estopRate, codec.compile(driveCmdObj, new String[] { "forward", "strafe" }), null, RequestQueue.PRIORITY_EMERGENCY, client));
+		
+		System.out.println("Loopback load: " + duration + " s, client: " + (pipelined ? "pipelined (" + maxInFlight + " in flight)" : "plain")
+				+ ", codec: " + codec.getName() + ", batching: " + (batchWindow >= 0 ? batchWindow + " ms" : "off") + ", server delay: " + delayModel + ", workers: " + workers + (simulate ? ", simulated bot" : ""));
+		Thread.sleep(200); // let the client connect
+		
+		ScheduledExecutorService load = Executors.newSingleThreadScheduledExecutor();
+		long start = System.nanoTime();
+		for (Stream stream : streams)
+			load.scheduleAtFixedRate(stream, 0, 1000000L / stream.rate, TimeUnit.MICROSECONDS);
+		Thread.sleep(duration * 1000L);
+		load.shutdown();
+		load.awaitTermination(1, TimeUnit.SECONDS);
+		Thread.sleep(Math.max(500, (tail > 0 ? 50 : 2) * (delay + jitter))); // let outstanding replies arrive
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		
+		// Report
+		System.out.println(String.format("%-28s %6s %8s %8s %8s %8s %9s %8s %8s %8s %8s",
+				"Stream", "Hz", "issued", "sent", "replied", "dropped", "replies/s", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+		for (Stream stream : streams) {
+			long sent = stats.get(stream.label).rtt.getCount();
+			System.out.println(String.format("%-28s %6d %8d %8d %8d %8d %9.1f %8.2f %8.2f %8.2f %8.2f",
+					stream.label, stream.rate, stream.issued.get(), sent, stream.completed.get(), stream.dropped.get(),
+					stream.completed.get() / elapsed,
+					stream.latency.getPercentile(0.50) / 1e6, stream.latency.getPercentile(0.95) / 1e6,
+					stream.latency.getPercentile(0.99) / 1e6, stream.latency.getMax() / 1e6));
+		}
+		System.out.println("(sent < issued: conflated on the client; replied counts superseded commands too, with their successor's reply)");
+		System.out.println("Flushed by stops: " + client.getFlushedCount() + ", expired: " + client.getExpiredCount() + ", timeouts: " + client.getTimeoutCount() + " (" + timeout + " ms), retries: " + client.getRetryCount() + ", reconnects: " + client.getReconnectCount());
+		System.out.println();
+		System.out.print(stats.format());
+		
+		client.term();
+		server.term();
+		if (sim != null)
+			sim.stop();
+		System.exit(0);
+	}
+}
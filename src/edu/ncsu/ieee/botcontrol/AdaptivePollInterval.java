@@ -0,0 +1,79 @@
+package edu.ncsu.ieee.botcontrol;
+
+/**
+ * Polling interval that adapts to the link and to what the data source can deliver.
+ *
+ * - Never polls faster than a few round-trips (smoothed RTT), so polls don't pile up on a slow link.
+ * - Speeds up while replies are fresh, backs off when they aren't (server had nothing newer) or fail.
+ * - Backs off further while other requests are queued, and holds a slower interval while the user is active (driving).
+ */
+public class AdaptivePollInterval {
+	private static final double RTT_GAIN = 0.125; // weight of a new RTT sample (same as TCP's smoothed RTT)
+	private static final double RTT_FACTOR = 2.0; // min. interval in RTTs
+	private static final double SPEED_UP = 0.8; // interval multiplier on a fresh reply
+	private static final double BACK_OFF = 1.5; // interval multiplier on a stale reply
+	private static final double FAIL_BACK_OFF = 2.0; // interval multiplier on a failed poll
+	
+	private final long minInterval; // ms
+	private final long maxInterval; // ms
+	private final long activeInterval; // ms; min. interval while user is active
+	
+	private double target; // ms; interval based on replies alone
+	private double rttEstimate = -1.0; // ms; smoothed RTT, -1 = no sample yet
+	private volatile long interval; // ms; effective interval, as of last update()
+	
+	public AdaptivePollInterval(long initialInterval, long minInterval, long maxInterval, long activeInterval) {
+		if (minInterval <= 0 || maxInterval < minInterval)
+			throw new IllegalArgumentException("Invalid interval range: [" + minInterval + ", " + maxInterval + "]");
+		this.minInterval = minInterval;
+		this.maxInterval = maxInterval;
+		this.activeInterval = activeInterval;
+		this.target = clamp(initialInterval);
+		this.interval = (long) target;
+	}
+	
+	/** Account for a successful poll that took rtt ms; fresh is false if the server had nothing newer to return. */
+	public synchronized void onReply(long rtt, boolean fresh) {
+		rttEstimate = (rttEstimate < 0 ? rtt : rttEstimate + RTT_GAIN * (rtt - rttEstimate));
+		target = clamp(target * (fresh ? SPEED_UP : BACK_OFF));
+	}
+	
+	/** Account for a failed (or dropped) poll. */
+	public synchronized void onFailure() {
+		target = clamp(target * FAIL_BACK_OFF);
+	}
+	
+	/**
+	 * Recompute effective interval.
+	 * @param pendingRequests no. of requests waiting to be sent on the same link
+	 * @param active true if the user is actively controlling the bot, and polls should stay out of the way
+	 * @return new interval, in ms
+	 */
+	public synchronized long update(int pendingRequests, boolean active) {
+		double next = Math.max(target, RTT_FACTOR * rttEstimate);
+		next *= (1 + Math.max(0, pendingRequests));
+		if (active)
+			next = Math.max(next, activeInterval);
+		interval = (long) clamp(next);
+		return interval;
+	}
+	
+	/** Effective interval as of last update(), in ms. */
+	public long getInterval() {
+		return interval;
+	}
+	
+	/** Smoothed round-trip time in ms, or -1 if not measured yet. */
+	public synchronized double getRttEstimate() {
+		return rttEstimate;
+	}
+	
+	private double clamp(double value) {
+		return Math.min(maxInterval, Math.max(minInterval, value));
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "AdaptivePollInterval[interval: " + interval + " ms, target: " + (long) target + " ms, rtt: " + (long) rttEstimate + " ms]";
+	}
+}
@@ -0,0 +1,15 @@
+package edu.ncsu.ieee.botcontrol;
+
+import java.util.List;
+
+/** Wire format for sending several requests in one message (e.g. batch_req), and splitting the corresponding reply. */
+public interface BatchFormat {
+	/** Check if given request may be sent as part of a batch. */
+	public boolean isBatchable(byte[] request);
+	
+	/** Combine given requests into a single batch request. */
+	public byte[] encodeBatch(List<byte[]> requests);
+	
+	/** Split a batch reply into individual replies (in request order); returns null if it isn't a valid batch reply. */
+	public List<String> decodeBatchReply(String reply);
+}
@@ -0,0 +1,204 @@
+package edu.ncsu.ieee.botcontrol;
+
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Compact binary codec for high-rate commands; only used if the server agrees to it during ping_req negotiation.
+ * 
+ * Frame layouts (multi-byte values are big-endian):
+ *   call_req: [MAGIC][TYPE_CALL_REQ][varint obj_id][varint method_id][param values in layout order]
+ *   ping_req: [MAGIC][TYPE_PING_REQ]
+ *   exit_req: [MAGIC][TYPE_EXIT_REQ]
+ *   batch_req: [MAGIC][TYPE_BATCH_REQ][varint count]{[varint length][call_req frame]}*count
+ * Param values are float32 ('f') or zigzag varint ('i'), as listed in LAYOUTS. Calls without a layout are sent as JSON text
+ * instead (servers can tell the two apart by the first byte: MAGIC vs. '{').
+ */
+public class BinaryCommandCodec implements CommandCodec {
+	public static final String NAME = "binary";
+	
+	public static final byte MAGIC = (byte) 0xBC;
+	public static final byte TYPE_CALL_REQ = 0x01;
+	public static final byte TYPE_PING_REQ = 0x02;
+	public static final byte TYPE_EXIT_REQ = 0x03;
+	public static final byte TYPE_BATCH_REQ = 0x04;
+	
+	/** Fixed frame layout for a known call: object/method ids and parameter order/types. */
+	public static class Layout {
+		public final String objName, method;
+		public final int objId, methodId;
+		public final String[] params;
+		public final char[] paramTypes; ///< 'f' = float32, 'i' = zigzag varint
+		
+		Layout(String objName, int objId, String method, int methodId, String[] params, String paramTypes) {
+			this.objName = objName;
+			this.objId = objId;
+			this.method = method;
+			this.methodId = methodId;
+			this.params = params;
+			this.paramTypes = paramTypes.toCharArray();
+		}
+	}
+	
+	// NOTE Ids are part of the wire protocol; only ever append to this table
+	public static final Layout[] LAYOUTS = {
+		new Layout("driver", 0, "move_forward_strafe", 0, new String[] { "forward", "strafe" }, "ff"),
+		new Layout("turret", 1, "aim", 0, new String[] { "yaw", "pitch" }, "ff"),
+		new Layout("gun", 2, "set_laser", 0, new String[] { "state" }, "i"),
+		new Layout("gun", 2, "spin_up", 1, new String[] {}, ""),
+		new Layout("gun", 2, "stop", 2, new String[] {}, ""),
+		new Layout("gun", 2, "fire", 3, new String[] {}, ""),
+		new Layout("ir_hub", 3, "read_cached", 0, new String[] { "max_staleness" }, "f"),
+		new Layout("ir_hub", 3, "read_binary", 1, new String[] { "thresh" }, "i")
+	};
+	
+	private final JsonCommandCodec fallbackCodec = new JsonCommandCodec();
+	
+	@Override
+	public String getName() {
+		return NAME;
+	}
+	
+	@Override
+	public byte[] encode(JSONObject cmdObj) {
+		if (cmdObj == null)
+			return null;
+		
+		String type = cmdObj.optString("type");
+		if (type.equals("ping_req"))
+			return new byte[] { MAGIC, TYPE_PING_REQ };
+		if (type.equals("exit_req"))
+			return new byte[] { MAGIC, TYPE_EXIT_REQ };
+		
+		Layout layout = (type.equals("call_req") ? findLayout(cmdObj.optString("obj_name"), cmdObj.optString("method")) : null);
+		if (layout == null)
+			return fallbackCodec.encode(cmdObj); // no fixed layout for this one
+		
+		try {
+			JSONObject paramsObj = cmdObj.getJSONObject("params");
+			byte[] frame = new byte[2 + varintSize(layout.objId) + varintSize(layout.methodId) + 5 * layout.params.length]; // upper bound
+			int pos = 0;
+			frame[pos++] = MAGIC;
+			frame[pos++] = TYPE_CALL_REQ;
+			pos = writeVarint(frame, pos, layout.objId);
+			pos = writeVarint(frame, pos, layout.methodId);
+			for (int i = 0; i < layout.params.length; i++) {
+				if (layout.paramTypes[i] == 'f')
+					pos = writeFloat(frame, pos, (float) paramsObj.getDouble(layout.params[i]));
+				else
+					pos = writeVarint(frame, pos, zigzag(paramsObj.getInt(layout.params[i])));
+			}
+			if (pos == frame.length)
+				return frame;
+			byte[] trimmed = new byte[pos];
+			System.arraycopy(frame, 0, trimmed, 0, pos);
+			return trimmed;
+		} catch (JSONException e) {
+			return fallbackCodec.encode(cmdObj); // missing/odd params, let the server deal with it
+		}
+	}
+	
+	@Override
+	public CommandTemplate compile(JSONObject cmdObj, String[] slotParams) {
+		// Only float params can be patched in place (varints change size with value)
+		Layout layout = (cmdObj.optString("type").equals("call_req") ? findLayout(cmdObj.optString("obj_name"), cmdObj.optString("method")) : null);
+		byte[] frame = encode(cmdObj);
+		if (layout == null || frame == null || frame[0] != MAGIC)
+			return new CommandTemplate.Encoding(this, cmdObj, slotParams);
+		
+		int[] slotOffsets = new int[slotParams.length];
+		for (int slot = 0; slot < slotParams.length; slot++) {
+			int pos = 2 + varintSize(layout.objId) + varintSize(layout.methodId);
+			int i = 0;
+			for (; i < layout.params.length && !layout.params[i].equals(slotParams[slot]); i++)
+				pos += (layout.paramTypes[i] == 'f' ? 4 : varintSize(zigzag(cmdObj.optJSONObject("params").optInt(layout.params[i], 0))));
+			if (i == layout.params.length || layout.paramTypes[i] != 'f')
+				return new CommandTemplate.Encoding(this, cmdObj, slotParams);
+			slotOffsets[slot] = pos;
+		}
+		return new Template(frame, slotOffsets);
+	}
+	
+	/** Binary frame with float32 slots at fixed offsets. */
+	static class Template extends CommandTemplate {
+		private final int[] slotOffsets;
+		
+		Template(byte[] frame, int[] slotOffsets) {
+			super(frame);
+			this.slotOffsets = slotOffsets;
+		}
+		
+		@Override
+		protected void patch(int slot, float value) {
+			writeFloat(frame, slotOffsets[slot], value);
+		}
+	}
+	
+	@Override
+	public boolean isBatchable(byte[] request) {
+		return ((request.length >= 2 && request[0] == MAGIC && request[1] == TYPE_CALL_REQ) || JsonCommandCodec.isJsonCallReq(request));
+	}
+	
+	@Override
+	public byte[] encodeBatch(List<byte[]> requests) {
+		int size = 2 + varintSize(requests.size());
+		for (byte[] request : requests)
+			size += varintSize(request.length) + request.length;
+		byte[] batch = new byte[size];
+		int pos = 0;
+		batch[pos++] = MAGIC;
+		batch[pos++] = TYPE_BATCH_REQ;
+		pos = writeVarint(batch, pos, requests.size());
+		for (byte[] request : requests) {
+			pos = writeVarint(batch, pos, request.length);
+			System.arraycopy(request, 0, batch, pos, request.length);
+			pos += request.length;
+		}
+		return batch;
+	}
+	
+	@Override
+	public List<String> decodeBatchReply(String reply) {
+		return JsonCommandCodec.splitBatchReply(reply);
+	}
+	
+	/** Look up the fixed layout for a call; returns null if there is none. */
+	public static Layout findLayout(String objName, String method) {
+		for (Layout layout : LAYOUTS) {
+			if (layout.objName.equals(objName) && layout.method.equals(method))
+				return layout;
+		}
+		return null;
+	}
+	
+	static int varintSize(int value) {
+		int size = 1;
+		while ((value >>>= 7) != 0)
+			size++;
+		return size;
+	}
+	
+	static int writeVarint(byte[] buf, int pos, int value) {
+		while ((value & ~0x7f) != 0) {
+			buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buf[pos++] = (byte) value;
+		return pos;
+	}
+	
+	static int writeFloat(byte[] buf, int pos, float value) {
+		int bits = Float.floatToIntBits(value);
+		buf[pos++] = (byte) (bits >>> 24);
+		buf[pos++] = (byte) (bits >>> 16);
+		buf[pos++] = (byte) (bits >>> 8);
+		buf[pos++] = (byte) bits;
+		return pos;
+	}
+	
+	static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+}
@@ -1,10 +1,7 @@
 package edu.ncsu.ieee.botcontrol;
 
-import java.util.Iterator;
 import java.util.regex.Pattern;
 
-import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.app.Activity;
@@ -14,6 +11,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -27,84 +25,52 @@ import android.widget.Toast;
 import android.widget.ToggleButton;
 
 /** Touch-based bot control activity. */
-public class BotControl extends Activity implements TouchJoystick.JoystickListener, ZMQSubscriberThread.OnMessageListener {
+public class BotControl extends Activity implements TouchJoystick.JoystickListener {
 	private static final String TAG = "BotControl";
 
-	/** Convenience class for specifying control ranges. */
-	public static class ControlRange {
-		public float min, zero_min, zero, zero_max, max;
-		public float half_range, offset;
-
-		/** Initialize control range members, compute some useful derived values. */
-		ControlRange(float min, float zero_min, float zero, float zero_max, float max) {
-			// NOTE min < zero_min <= zero <= zero_max < max
-			this.min = min;
-			this.zero_min = zero_min;
-			this.zero = zero;
-			this.zero_max = zero_max;
-			this.max = max;
-
-			this.half_range = (this.max - this.min) / 2;
-			this.offset = (this.min + this.max) / 2;
-		}
-
-		/** Convert a normalized input value in [-1, 1] to a range-limited control value. */
-		public float fromNormalizedInput(float value) {
-			return applyLimits(offset + half_range * value);
-		}
-
-		/** Convert a range-limited control value to a normalized input value in [-1, 1]. */
-		public float toNormalizedInput(float value) {
-			return (value - offset) / half_range;
-		}
-
-		/** Apply range limits to control value. */
-		public float applyLimits(float value) {
-			return
-					(value < min
-							? min
-									: (value < zero_min
-											? value
-													: (value <= zero_max
-													? zero
-															: (value <= max
-															? value
-																	: max
-																	)
-															)
-											)
-							);
-		}
-	}
-
 	// Drive variables and ranges (TODO Check turn range)
-	private static final ControlRange forwardRange = new ControlRange(-100.f, -25.f, 0.f, 25.f, 100.f);
-	private float forward = forwardRange.zero;
+	// NOTE Control variables are volatile: set on the UI thread, sampled by the control loop
+	// NOTE Ranges are per instance (not static): they hold change filter settings, configured in onCreate()
+	private final ControlRange forwardRange = new ControlRange(-100.f, -25.f, 0.f, 25.f, 100.f);
+	private volatile float forward = forwardRange.zero;
 
-	private static final ControlRange strafeRange = new ControlRange(-100.f, -25.f, 0.f, 25.f, 100.f);
-	private float strafe = strafeRange.zero;
+	private final ControlRange strafeRange = new ControlRange(-100.f, -25.f, 0.f, 25.f, 100.f);
+	private volatile float strafe = strafeRange.zero;
 
-	private static final ControlRange turnRange = new ControlRange(-100.f, -25.f, 0.f, 25.f, 100.f);
-	private float turn = turnRange.zero;
+	private final ControlRange turnRange = new ControlRange(-100.f, -25.f, 0.f, 25.f, 100.f);
+	private volatile float turn = turnRange.zero;
 	// TODO Turning not implemented yet; turn is always 0
 
 	private float lastForward = forward;
 	private float lastStrafe = strafe;
 	private float lastTurn = turn;
 
+	private float sentForward = forward; // last values sent by the control loop (vs. last* = last acknowledged)
+	private float sentStrafe = strafe;
+	private float sentTurn = turn;
+	private volatile boolean driveNeutralPending = false; // set on release; the control loop then sends neutral even if it looks unchanged
+	private volatile boolean driveResendPending = false; // set when a drive command fails; the control loop then resends current inputs
+	private volatile int estopCount = 0; // no. of E-stops sent; commands that fail across one (e.g. flushed by it) are not resent
+
 	private JSONObject driveCmdObj = new JSONObject(); // cached JSON objects for frequent use
+	private static final String driveChannel = "driver.move_forward_strafe"; // conflation channel (obj_name.method): only the latest pending drive command is sent
 
 	// Turret variables and ranges (TODO Check pitch and yaw ranges)
-	private static final ControlRange pitchRange = new ControlRange(60.f, 90.f, 90.f, 90.f, 120.f);
-	private float pitch = pitchRange.zero;
+	private final ControlRange pitchRange = new ControlRange(60.f, 90.f, 90.f, 90.f, 120.f);
+	private volatile float pitch = pitchRange.zero;
 
-	private static final ControlRange yawRange = new ControlRange(10.f, 90.f, 90.f, 90.f, 170.f);
-	private float yaw = yawRange.zero;
+	private final ControlRange yawRange = new ControlRange(10.f, 90.f, 90.f, 90.f, 170.f);
+	private volatile float yaw = yawRange.zero;
 
 	private float lastPitch = pitch;
 	private float lastYaw = yaw;
 
+	private float sentPitch = pitch;
+	private float sentYaw = yaw;
+	private volatile boolean turretResendPending = false; // set when a turret command fails (see driveResendPending)
+
 	private JSONObject turretCmdObj;
+	private static final String turretChannel = "turret.aim";
 
 	// Gun variables
 	private int laser = 0;
@@ -134,18 +100,83 @@ public class BotControl extends Activity implements TouchJoystick.JoystickListen
 	int maxConsoleLength = 200; // keep low to clear frequently
 
 	// Topics of streaming messages to subscribe to
-	// TODO Enable topics: "drive" (forward, strafe, turn), "turret" (pitch, yaw), "ir" (front, back, left, right)
-	private String[] subscriptionTopics = { "turret_pitch", "turret_yaw", "ir" };
+	// TODO Enable topics (each needs a listener, see startSubscriber()): "drive" (forward, strafe, turn), "turret_pitch"/"turret_yaw"
+	private String[] subscriptionTopics = { "ir" };
 
 	// Communication
 	private String serverProtocol = "tcp";
 	private String serverHost = null; // leave null to read from resource file (if not in preferences), or override here: e.g. 10.2.1.1 for the bot, 10.0.2.2 from an emulator refers to the host computer
 	private int serverPort = 60000;
 	private int pubServerPort = 60001;
-	private ZMQClientThread clientThread = null;
+	private volatile ZMQClientThread clientThread = null; // NOTE: Read by the control loop, IR source and dispatcher threads
+	private boolean pipelinedClient = false; // use a DEALER-based client that keeps several requests in flight (works with REP and ROUTER servers)
+	private int maxInFlight = ZMQPipelinedClientThread.DEFAULT_MAX_IN_FLIGHT;
+	private long requestTimeout = 500; // ms; no reply within this long (e.g. after a Wi-Fi blip): reconnect, and resend idempotent commands
+	private int maxRetries = 2; // no. of times an idempotent command is resent before its callback gets a failure (null reply)
+	private long controlTtl = 300; // ms; drive/turret/gun commands still queued after this long (e.g. after a stall) are stale, and discarded
+	private long telemetryTtl = 1000; // ms; same for sensor reads (the next poll asks again anyway); stops never expire
+	private boolean preferBinaryCodec = true; // offer the compact binary codec when pinging; server decides (see handleCapabilities())
+	private boolean offerBatching = true; // offer to send batch_req messages when pinging; only used if the server agrees
+	private long batchWindow = 5; // ms; a command with others queued behind it waits up to this long for more to send in one batch
+	private int maxBatchSize = 4; // e.g. drive + turret + gun in the same frame
+	private final CommandCodec jsonCodec = new JsonCommandCodec();
+	private final CommandCodec binaryCodec = new BinaryCommandCodec();
+	private volatile CommandCodec commandCodec = jsonCodec; // codec used for the current connection; reset to JSON on (re)connect
+	private final LatencyStats latencyStats = new LatencyStats(); // per command queue wait, round-trip and callback times; kept across reconnects
+
+	// Pre-encoded templates of frequent commands, patched in place (recompiled whenever the codec changes)
+	private volatile CommandTemplate driveTemplate; // slots: forward, strafe
+	private volatile CommandTemplate turretTemplate; // slots: yaw, pitch
+	private volatile CommandTemplate laserTemplate; // slots: state
+	private volatile CommandTemplate irTemplate; // slots: max_staleness
+	private volatile CommandTemplate irBinaryTemplate; // slots: thresh
 	private ZMQSubscriberThread subscriberThread = null;
-	private Thread dataThread = null;
-	private long dataInterval = 500; // ms, time between reads
+	private long dataInterval = 500; // ms, initial time between reads (when polling); adapted to RTT, freshness, queue and activity
+	private long irStaleTimeout = 1500; // ms; IR stream is considered stale (and polling kicks in) if nothing was published for this long
+	private long activeHoldoff = 1000; // ms; user counts as active (driving) for this long after the last drive/turret command
+	private volatile long lastControlTime = 0; // ms (System.nanoTime() based); time of last drive/turret command
+	private final IRHistory irHistory = new IRHistory(new String[] { "front", "back", "left", "right" }, 1024, 8); // sensor arrays, rows, max. values per array
+	private IRHistory.Snapshot irSnapshot = null; // created on first use (NOTE: Only used on the UI thread)
+	private final AdaptivePollInterval irPollInterval = new AdaptivePollInterval(dataInterval, 50, 2000, 500); // initial, min, max, while active (ms)
+	private final IRTelemetrySource irSource = new IRTelemetrySource(
+		new IRTelemetrySource.Poller() {
+			@Override
+			public void poll() {
+				ZMQClientThread client = clientThread;
+				if (client != null) {
+					long interval = irPollInterval.update(client.getPendingCount(), isControlActive());
+					irSource.setPollInterval(interval);
+					doIRRead(interval, false); // don't block, may cause continuous stream of failed attempts
+				}
+			}
+		},
+		dataInterval,
+		irStaleTimeout);
+
+	// Command dispatch (workers that run reply callbacks, instead of a new thread per command)
+	private int dispatchPoolSize = 2;
+	private int dispatchQueueSize = 32;
+	private CommandDispatcher.QueuePolicy dispatchQueuePolicy = CommandDispatcher.QueuePolicy.DROP_OLDEST; // stale replies are least useful (NOTE: only display work is dropped, see StatefulReplyCallback)
+	private CommandDispatcher commandDispatcher = null;
+
+	// Control loop (samples drive and turret inputs at a fixed rate, independent of touch event rate)
+	private int controlRate = 50; // Hz
+	private ControlLoop controlLoop = null;
+
+	// Touch input filtering (see TouchFilter): joystick samples are smoothed, and resampled once per control loop tick
+	private float touchMinCutoff = TouchFilter.DEFAULT_MIN_CUTOFF; // Hz; <= 0 to send raw touch positions
+	private float touchBeta = TouchFilter.DEFAULT_BETA;
+	private long touchPrediction = 0; // ms; extrapolate this far along the finger's velocity to make up for touch latency (e.g. 16; adds jitter)
+	private final float[] knobSample = new float[2]; // scratch for sampled knob positions (NOTE: Only used on the control loop thread)
+
+	// Setpoint change filtering (see ControlRange.filterChange()): quantize to what the bot resolves, ignore tremor-sized changes
+	private float driveResolution = 1.f; // % of full speed
+	private float driveDeadband = 2.f; // speed changes smaller than this are not worth a command
+	private float turretResolution = 1.f; // deg
+	private float turretDeadband = 0.f; // aiming needs every degree; quantization and hysteresis are enough
+	private float setpointHysteresis = 0.25f; // steps
+	private int driveSentCount = 0, driveSuppressedCount = 0; // ticks with changed inputs that did/didn't send a command (control loop thread)
+	private int turretSentCount = 0, turretSuppressedCount = 0;
 
 	// View elements
 	private TextView txtConsole = null;
@@ -185,25 +216,39 @@ public class BotControl extends Activity implements TouchJoystick.JoystickListen
 		lastTurn = turn = turnRange.zero;
 		lastPitch = pitch = pitchRange.zero;
 		lastYaw = yaw = yawRange.zero;
+		sentForward = forward;
+		sentStrafe = strafe;
+		sentTurn = turn;
+		sentPitch = pitch;
+		sentYaw = yaw;
 		lastLaser = laser = 0;
 		lastSpin = spin = 0;
 
 		// Initialize JSON objects that will be used frequently to make call requests
-		driveCmdObj = makeCallReq("driver", "move_forward_strafe", new String[] { "forward", "strafe" }, new Object[] { forward, strafe });
-		turretCmdObj = makeCallReq("turret", "aim", new String[] { "yaw", "pitch" }, new Object[] { yaw, pitch });
-		pingCmdObj = makePingReq();
-		laserCmdObj = makeCallReq("gun", "set_laser", new String[] { "state" }, new Object[] { laser });
-		spinUpCmdObj = makeCallReq("gun", "spin_up", null, null);
-		spinDownCmdObj = makeCallReq("gun", "stop", null, null);
-		fireCmdObj = makeCallReq("gun", "fire", null, null);
-		irCmdObj = makeCallReq("ir_hub", "read_cached", new String[] { "max_staleness" }, new Object[] { dataInterval / 1000.f }); // dataInterval is in ms
-		irBinaryCmdObj = makeCallReq("ir_hub", "read_binary", new String[] { "thresh" }, new Object[] { irBinaryThresh });
-		estopCmdObj = makeCallReq("driver", "move_forward_strafe", new String[] { "forward", "strafe" }, new Object[] { forwardRange.zero, strafeRange.zero });
-		exitCmdObj = makeExitReq();
+		driveCmdObj = CommandMessages.makeCallReq("driver", "move_forward_strafe", new String[] { "forward", "strafe" }, new Object[] { forward, strafe });
+		turretCmdObj = CommandMessages.makeCallReq("turret", "aim", new String[] { "yaw", "pitch" }, new Object[] { yaw, pitch });
+		pingCmdObj = CommandMessages.makePingReq(preferBinaryCodec, offerBatching);
+		laserCmdObj = CommandMessages.makeCallReq("gun", "set_laser", new String[] { "state" }, new Object[] { laser });
+		spinUpCmdObj = CommandMessages.makeCallReq("gun", "spin_up", null, null);
+		spinDownCmdObj = CommandMessages.makeCallReq("gun", "stop", null, null);
+		fireCmdObj = CommandMessages.makeCallReq("gun", "fire", null, null);
+		irCmdObj = CommandMessages.makeCallReq("ir_hub", "read_cached", new String[] { "max_staleness" }, new Object[] { dataInterval / 1000.f }); // dataInterval is in ms
+		irBinaryCmdObj = CommandMessages.makeCallReq("ir_hub", "read_binary", new String[] { "thresh" }, new Object[] { irBinaryThresh });
+		estopCmdObj = CommandMessages.makeCallReq("driver", "move_forward_strafe", new String[] { "forward", "strafe" }, new Object[] { forwardRange.zero, strafeRange.zero });
+		exitCmdObj = CommandMessages.makeExitReq();
+		compileTemplates(commandCodec);
 
 		// Configure view elements
 		driveJoystick.setJoystickListener(this);
 		turretJoystick.setJoystickListener(this);
+		for (TouchJoystick joystick : new TouchJoystick[] { driveJoystick, turretJoystick }) {
+			joystick.getTouchFilter().setFilter(touchMinCutoff, touchBeta, TouchFilter.DEFAULT_D_CUTOFF);
+			joystick.getTouchFilter().setPrediction(touchPrediction);
+		}
+		forwardRange.setChangeFilter(driveResolution, driveDeadband, setpointHysteresis);
+		strafeRange.setChangeFilter(driveResolution, driveDeadband, setpointHysteresis);
+		pitchRange.setChangeFilter(turretResolution, turretDeadband, setpointHysteresis);
+		yawRange.setChangeFilter(turretResolution, turretDeadband, setpointHysteresis);
 		driveJoystick.updateKnob(strafeRange.toNormalizedInput(strafe), -forwardRange.toNormalizedInput(forward)); // NOTE Y-flip
 		turretJoystick.updateKnob(yawRange.toNormalizedInput(yaw), pitchRange.toNormalizedInput(pitch));
 		updateDriveViews();
@@ -242,17 +287,23 @@ public class BotControl extends Activity implements TouchJoystick.JoystickListen
 	@Override
 	protected void onResume() {
 		super.onResume();
+		ZMQContextManager.acquire(); // keep the shared ZMQ context (and its I/O thread) alive across reconnects while resumed
+		startDispatcher();
 		startClient();
-		//startSubscriber(); // NOTE subscriber disabled
-		startDataThread();
+		startSubscriber();
+		startIRSource();
+		startControlLoop();
 		txtConsole.setText("[SYSTEM] Ready\n");
 	}
 
 	@Override
 	protected void onPause() {
-		stopDataThread();
-		//stopSubscriber(); // NOTE subscriber disabled
+		stopControlLoop();
+		stopIRSource();
+		stopSubscriber();
 		stopClient();
+		stopDispatcher();
+		ZMQContextManager.release(); // context is terminated once the threads above have closed their sockets
 		super.onPause();
 	}
 	
@@ -335,6 +386,43 @@ public class BotControl extends Activity implements TouchJoystick.JoystickListen
 			strafe = strafeRange.zero;
 			return true;
 		
+		case R.id.action_irhistory:
+			// Summarize recent IR readings (streamed and polled) from the history
+			if (irSnapshot == null)
+				irSnapshot = irHistory.newSnapshot();
+			final AlertDialog.Builder irHistoryDialog = new AlertDialog.Builder(BotControl.this);
+			irHistoryDialog.setTitle("IR history (" + (irSource.isPolling() ? "polling" : "streaming") + ")");
+			irHistoryDialog.setMessage(irHistory.format(irSnapshot));
+			irHistoryDialog.setNegativeButton("Close", new DialogInterface.OnClickListener() {
+				@Override
+				public void onClick(DialogInterface dialog, int whichButton) {
+					dialog.cancel();
+				}
+			});
+			irHistoryDialog.show();
+			return true;
+		
+		case R.id.action_latency:
+			// Show latency stats (and dump them to log); stats can be reset to measure a specific scenario
+			latencyStats.dump();
+			final AlertDialog.Builder latencyDialog = new AlertDialog.Builder(BotControl.this);
+			latencyDialog.setTitle("Latency (queue / rtt / callback)");
+			latencyDialog.setMessage(latencyStats.format());
+			latencyDialog.setPositiveButton("Reset", new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int whichButton) {
+					Log.d(TAG, "onOptionsItemSelected(): [latencyDialog] Resetting latency stats...");
+					latencyStats.reset();
+				}
+			});
+			latencyDialog.setNegativeButton("Close", new DialogInterface.OnClickListener() {
+				@Override
+				public void onClick(DialogInterface dialog, int whichButton) {
+					dialog.cancel();
+				}
+			});
+			latencyDialog.show();
+			return true;
+		
 		case R.id.action_killserver:
 			// Build a confirmation dialog
 			final AlertDialog.Builder killServerDialog = new AlertDialog.Builder(BotControl.this);
@@ -403,8 +491,19 @@ public class BotControl extends Activity implements TouchJoystick.JoystickListen
 	private void startClient() {
 		stopClient(); // stop previously running client thread, if any
 		Log.d(TAG, "startClient(): Starting client thread...");
-		clientThread = new ZMQClientThread(serverProtocol, serverHost, serverPort);
+		clientThread = (pipelinedClient
+				? new ZMQPipelinedClientThread(serverProtocol, serverHost, serverPort, maxInFlight)
+				: new ZMQClientThread(serverProtocol, serverHost, serverPort));
+		clientThread.setLatencyStats(latencyStats);
+		clientThread.setRequestTimeout(requestTimeout, maxRetries);
+		clientThread.setTimeToLive(RequestQueue.PRIORITY_CONTROL, controlTtl);
+		clientThread.setTimeToLive(RequestQueue.PRIORITY_TELEMETRY, telemetryTtl);
 		clientThread.start();
+		if (commandCodec != jsonCodec) {
+			commandCodec = jsonCodec; // until the new server says otherwise
+			compileTemplates(commandCodec);
+		}
+		negotiateCapabilities();
 	}
 
 	private void stopClient() {
@@ -415,51 +514,131 @@ public class BotControl extends Activity implements TouchJoystick.JoystickListen
 		}
 	}
 
+	private void startDispatcher() {
+		stopDispatcher();
+		Log.d(TAG, "startDispatcher(): Starting command dispatcher (" + dispatchPoolSize + " workers, queue size " + dispatchQueueSize + ", " + dispatchQueuePolicy + ")...");
+		commandDispatcher = new CommandDispatcher(dispatchPoolSize, dispatchQueueSize, dispatchQueuePolicy);
+	}
+
+	private void stopDispatcher() {
+		if (commandDispatcher != null) {
+			Log.d(TAG, "stopDispatcher(): Stopping command dispatcher: " + commandDispatcher);
+			commandDispatcher.shutdown();
+			commandDispatcher = null;
+		}
+	}
+
+	private void startControlLoop() {
+		stopControlLoop();
+		Log.d(TAG, "startControlLoop(): Starting control loop at " + controlRate + " Hz...");
+		driveSentCount = driveSuppressedCount = turretSentCount = turretSuppressedCount = 0;
+		controlLoop = new ControlLoop(controlRate, new ControlLoop.OnTickListener() {
+			@Override
+			public void onTick() {
+				onControlTick();
+			}
+		});
+		controlLoop.start();
+	}
+
+	private void stopControlLoop() {
+		if (controlLoop != null) {
+			Log.d(TAG, "stopControlLoop(): Stopping control loop... (drive: sent " + driveSentCount + ", suppressed " + driveSuppressedCount
+					+ "; turret: sent " + turretSentCount + ", suppressed " + turretSuppressedCount + ")");
+			controlLoop.stop();
+			controlLoop = null;
+		}
+	}
+
+	private void onControlTick() {
+		// Sample latest drive inputs (filtered touch position while dragged, else as set on the UI thread);
+		//   send only if changed enough since last sent (see ControlRange.filterChange()), or if neutral is owed after a release
+		// NOTE Read the flag before the values: the UI thread sets values first (see onJoystickEvent())
+		long now = SystemClock.uptimeMillis(); // same clock as touch event times
+		boolean neutralPending = driveNeutralPending;
+		if (driveResendPending) {
+			// Last drive command failed: the bot may not have the values sent, so send current inputs whatever they are
+			driveResendPending = false;
+			sentForward = sentStrafe = sentTurn = Float.NaN;
+		}
+		float tickForward = forward, tickStrafe = strafe;
+		if (!neutralPending && driveJoystick.sampleKnob(now, knobSample)) {
+			tickForward = forwardRange.fromNormalizedInput(-knobSample[1]); // NOTE Y-flip
+			tickStrafe = strafeRange.fromNormalizedInput(knobSample[0]);
+		}
+		boolean driveChanged = (tickForward != sentForward || tickStrafe != sentStrafe || turn != sentTurn);
+		if (!neutralPending) {
+			tickForward = forwardRange.filterChange(tickForward, sentForward);
+			tickStrafe = strafeRange.filterChange(tickStrafe, sentStrafe);
+		}
+		if (neutralPending || tickForward != sentForward || tickStrafe != sentStrafe || turn != sentTurn) {
+			driveNeutralPending = false;
+			driveSentCount++;
+			sentForward = tickForward;
+			sentStrafe = tickStrafe;
+			sentTurn = turn;
+			lastControlTime = System.nanoTime() / 1000000L;
+			doDrive(sentForward, sentStrafe, neutralPending);
+		}
+		else if (driveChanged) {
+			driveSuppressedCount++;
+		}
+
+		// Sample latest turret inputs
+		if (turretResendPending) {
+			turretResendPending = false;
+			sentPitch = sentYaw = Float.NaN;
+		}
+		float tickPitch = pitch, tickYaw = yaw;
+		if (turretJoystick.sampleKnob(now, knobSample)) {
+			tickPitch = pitchRange.fromNormalizedInput(knobSample[1]);
+			tickYaw = yawRange.fromNormalizedInput(knobSample[0]);
+		}
+		boolean turretChanged = (tickPitch != sentPitch || tickYaw != sentYaw);
+		tickPitch = pitchRange.filterChange(tickPitch, sentPitch);
+		tickYaw = yawRange.filterChange(tickYaw, sentYaw);
+		if (tickPitch != sentPitch || tickYaw != sentYaw) {
+			turretSentCount++;
+			sentPitch = tickPitch;
+			sentYaw = tickYaw;
+			lastControlTime = System.nanoTime() / 1000000L;
+			doTurret(sentYaw, sentPitch);
+		}
+		else if (turretChanged) {
+			turretSuppressedCount++;
+		}
+	}
+
+	private boolean isControlActive() {
+		return (lastControlTime != 0 && System.nanoTime() / 1000000L - lastControlTime < activeHoldoff);
+	}
+
 	private void startSubscriber() {
 		stopSubscriber();
 		Log.d(TAG, "startSubscriber(): Starting subscriber thread...");
 		subscriberThread = new ZMQSubscriberThread(serverProtocol, serverHost, pubServerPort);
 		subscriberThread.setTopics(subscriptionTopics);
-		subscriberThread.setListener(this);
+		subscriberThread.addTopicListener("ir", irSource);
 		subscriberThread.start();
 	}
 
 	private void stopSubscriber() {
 		if (subscriberThread != null) {
-			Log.d(TAG, "stopSubscriber(): Stopping subscriber thread...");
+			Log.d(TAG, "stopSubscriber(): Stopping subscriber thread... (received: " + subscriberThread.getReceivedCount() + ", dropped: " + subscriberThread.getDropCounts() + ")");
 			subscriberThread.term();
 			subscriberThread = null;
 		}
 	}
 	
-	private void startDataThread() {
-		stopDataThread();
-		Log.d(TAG, "startDataThread(): Starting data read thread...");
-		dataThread = new Thread() {
-			public void run() {
-				if (clientThread != null) {
-					while (true) {
-						try {
-							doIRRead(false); // don't block, may cause continuous stream of failed attempts
-							// TODO Check if a lot of continuous reads have failed, then break out
-							sleep(dataInterval);
-						} catch (InterruptedException e) {
-							Log.d(TAG, "dataThread: Interrupted! Exiting data read thread...");
-							break;
-						}
-					}
-				}
-			}
-		};
-		dataThread.start();
+	private void startIRSource() {
+		Log.d(TAG, "startIRSource(): Starting IR telemetry (stream, with polling fallback)...");
+		irSource.setListener(irListener);
+		irSource.start();
 	}
 	
-	private void stopDataThread() {
-		if (dataThread != null) {
-			Log.d(TAG, "stopDataThread(): Stopping data read thread...");
-			dataThread.interrupt();
-			dataThread = null;
-		}
+	private void stopIRSource() {
+		Log.d(TAG, "stopIRSource(): Stopping IR telemetry... (streamed: " + irSource.getStreamedCount() + ", polled: " + irSource.getPolledCount() + ", " + irPollInterval + ")");
+		irSource.stop();
 	}
 
 	@Override
@@ -480,8 +659,7 @@ public class BotControl extends Activity implements TouchJoystick.JoystickListen
 				forward = forwardRange.fromNormalizedInput(-driveJoystick.knobYNorm); // NOTE Y-flip
 				strafe  = strafeRange.fromNormalizedInput(driveJoystick.knobXNorm);
 				//Log.d(TAG, "onJoystickEvent(): [drive/ACTION_MOVE] forward = " + forward + ", strafe = " + strafe + ", turn = " + turn);
-
-				doDrive(false); // ok to drop
+				// NOTE Sent on the next control loop tick
 				return true;
 
 			case MotionEvent.ACTION_UP:
@@ -490,7 +668,7 @@ public class BotControl extends Activity implements TouchJoystick.JoystickListen
 				strafe = strafeRange.zero;
 				turn = turnRange.zero;
 				driveJoystick.updateKnob(forward, strafe); // spring back to neutral
-				doDrive(true); // NOT ok to drop
+				driveNeutralPending = true; // next tick sends neutral, superseding any pending drive command
 				return true;
 			}
 		}
@@ -507,8 +685,7 @@ public class BotControl extends Activity implements TouchJoystick.JoystickListen
 				pitch = pitchRange.fromNormalizedInput(turretJoystick.knobYNorm);
 				yaw = yawRange.fromNormalizedInput(turretJoystick.knobXNorm);
 				//Log.d(TAG, "onJoystickEvent(): [turret/ACTION_MOVE] pitch = " + pitch + ", yaw = " + yaw);
-
-				doTurret(false); // ok to drop
+				// NOTE Sent on the next control loop tick
 				return true;
 
 			case MotionEvent.ACTION_UP:
@@ -519,14 +696,58 @@ public class BotControl extends Activity implements TouchJoystick.JoystickListen
 		return false;
 	}
 
+	private void negotiateCapabilities() {
+		// Ping the control server quietly, just to agree upon codec and batching (ping_req is always sent as JSON)
+		sendCommand(
+			null,
+			"ping_req",
+			jsonCodec.encode(pingCmdObj),
+			true,
+			new StatefulReplyCallback() {
+				@Override
+				public void onReplyState(final String reply) {
+					if (reply == null)
+						return;
+					handleCapabilities(new ReplyReader(reply));
+				}
+			}
+		);
+	}
+
+	private void handleCapabilities(ReplyReader reader) {
+		// Switch to the codec chosen by the server in its ping_reply, and enable batching if it accepts batch_req;
+		//   servers that don't know about these leave us on plain JSON requests
+		if (!reader.isType("ping_reply"))
+			return;
+		CommandCodec codec = (preferBinaryCodec && reader.stringEquals(reader.field(reader.root(), "codec"), BinaryCommandCodec.NAME) ? binaryCodec : jsonCodec);
+		if (codec != commandCodec) {
+			Log.i(TAG, "handleCapabilities(): Switching to " + codec.getName() + " codec");
+			compileTemplates(codec);
+			commandCodec = codec;
+		}
+		boolean batching = (offerBatching && reader.readBoolean(reader.field(reader.root(), "batch"), false));
+		ZMQClientThread client = clientThread;
+		if (client != null) {
+			client.setBatching((batching ? codec : null), batchWindow, maxBatchSize);
+		}
+	}
+
 	private void doPing(final boolean block) {
 		// Ping the control server, get response time in milliseconds
 		txtConsole.append("[PING] Sending...\n"); // should be on UI thread
 		final long startTime = System.currentTimeMillis();
 		sendCommand(
-			pingCmdObj,
+			null,
+			"ping_req",
+			jsonCodec.encode(pingCmdObj), // always JSON, so that it can carry the codec offer
 			block,
-			new CommandReplyCallback() {
+			new StatefulReplyCallback() {
+				@Override
+				public void onReplyState(final String reply) {
+					if (reply != null)
+						handleCapabilities(new ReplyReader(reply));
+				}
+				
 				@Override
 				public void onReply(final String reply) {
 					// Parse JSON reply and update if valid response (TODO and result contained in reply?)
@@ -534,111 +755,123 @@ public class BotControl extends Activity implements TouchJoystick.JoystickListen
 					if (reply == null)
 						return;
 					
-					try {
-						JSONObject replyObj = new JSONObject(reply);
-						if (replyObj == null || !replyObj.has("type") || !replyObj.getString("type").equals("ping_reply"))
-							return;
-						
-						// Update UI to show ping success and responseTime
-						runOnUiThread(new Runnable() {
-							public void run() {
-								// Update ping state
-								pingOkay = true;
-								btnPing.setBackgroundColor(okayColor);
-								txtConsole.append("[PING] Received (" + responseTime + " ms).\n");
-								Toast.makeText(BotControl.this, "Ping: " + responseTime + " ms", Toast.LENGTH_SHORT).show();
-							}
-						});
-					} catch (JSONException e) {
-						Log.e(TAG, "Error parsing JSON ping reply: " + e);
-					}
+					ReplyReader reader = new ReplyReader(reply);
+					if (!reader.isType("ping_reply"))
+						return;
+					
+					// Update UI to show ping success and responseTime
+					runOnUiThread(new Runnable() {
+						public void run() {
+							// Update ping state
+							pingOkay = true;
+							btnPing.setBackgroundColor(okayColor);
+							txtConsole.append("[PING] Received (" + responseTime + " ms).\n");
+							Toast.makeText(BotControl.this, "Ping: " + responseTime + " ms", Toast.LENGTH_SHORT).show();
+						}
+					});
 				}
 			}
 		);
 	}
 	
-	private void doDrive(final boolean block) {
-		// Generate and send drive command, if different from last
-		if (forward != lastForward || strafe != lastStrafe || turn != lastTurn) {
-			setCallReqParam(driveCmdObj, "forward", forward);
-			setCallReqParam(driveCmdObj, "strafe", strafe);
-			//setCallReqParam(driveCmdObj, "turn", turn); // TODO turn currently not used
-
-			sendCommand(
-				driveCmdObj,
-				block,
-				new CommandReplyCallback() {
-					@Override
-					public void onReply(final String reply) {
-						// Parse JSON reply and update if valid response (TODO and result contained in reply?)
-						if (reply != null && parseCallReply(reply) != null) {
-							// Update drive state and views
-							lastForward = forward;
-							lastStrafe = strafe;
-							lastTurn = turn;
-							runOnUiThread(new Runnable() {
-								public void run() {
-									updateDriveViews();
-								}
-							});
-						}
-						else {
-							// Restore last drive state
-							forward = lastForward;
-							strafe = lastStrafe;
-							turn = lastTurn;
-						}
+	private void doDrive(final float sendForward, final float sendStrafe, final boolean neutral) {
+		// Generate and send drive command (control loop decides when)
+		// NOTE Neutral on release is an emergency: it jumps the queue and replaces any older pending drive command,
+		//   but doesn't flush other pending commands (only an E-stop does)
+		final int sendEstopCount = estopCount;
+		CommandTemplate template = driveTemplate;
+		template.set(0, sendForward);
+		template.set(1, sendStrafe);
+		// TODO turn currently not used
+
+		sendTemplateCommand(
+			driveChannel,
+			template,
+			(neutral ? RequestQueue.PRIORITY_EMERGENCY : RequestQueue.PRIORITY_CONTROL),
+			false,
+			new StatefulReplyCallback() {
+				@Override
+				public void onReplyState(final String reply) {
+					// Parse JSON reply and update if valid response (TODO and result contained in reply?)
+					if (reply != null && CommandMessages.isCallReply(new ReplyReader(reply))) {
+						// Update drive state
+						lastForward = sendForward;
+						lastStrafe = sendStrafe;
+						lastTurn = turn;
+					}
+					else if (estopCount == sendEstopCount) {
+						// Have the control loop resend current inputs (never restore old ones here: that could undo a stop)
+						driveResendPending = true;
 					}
 				}
-			);
-		}
+				
+				@Override
+				public void onReply(final String reply) {
+					if (reply == null)
+						return;
+					runOnUiThread(new Runnable() {
+						public void run() {
+							updateDriveViews();
+						}
+					});
+				}
+			}
+		);
 	}
 
-	private void doTurret(final boolean block) {
-		// Generate and send turret command, if different from last
-		if ( yaw != lastYaw || pitch != lastPitch) {
-			setCallReqParam(turretCmdObj, "yaw", yaw);
-			setCallReqParam(turretCmdObj, "pitch", pitch);
-
-			sendCommand(
-				turretCmdObj,
-				block,
-				new CommandReplyCallback() {
-					@Override
-					public void onReply(final String reply) {
-						// Parse JSON reply and update if valid response (TODO and result contained in reply?)
-						if (reply != null && parseCallReply(reply) != null) {
-							// Update turret state and views
-							lastPitch = pitch;
-							lastYaw = yaw;
-							runOnUiThread(new Runnable() {
-								public void run() {
-									updateTurretViews();
-								}
-							});
-						}
-						else {
-							// Restore last turret state
-							pitch = lastPitch;
-							yaw = lastYaw;
-						}
+	private void doTurret(final float sendYaw, final float sendPitch) {
+		// Generate and send turret command (control loop decides when)
+		final int sendEstopCount = estopCount;
+		CommandTemplate template = turretTemplate;
+		template.set(0, sendYaw);
+		template.set(1, sendPitch);
+
+		sendTemplateCommand(
+			turretChannel,
+			template,
+			false,
+			new StatefulReplyCallback() {
+				@Override
+				public void onReplyState(final String reply) {
+					// Parse JSON reply and update if valid response (TODO and result contained in reply?)
+					if (reply != null && CommandMessages.isCallReply(new ReplyReader(reply))) {
+						// Update turret state
+						lastPitch = sendPitch;
+						lastYaw = sendYaw;
+					}
+					else if (estopCount == sendEstopCount) {
+						// Have the control loop resend current inputs
+						turretResendPending = true;
 					}
 				}
-			);
-		}
+				
+				@Override
+				public void onReply(final String reply) {
+					if (reply == null)
+						return;
+					runOnUiThread(new Runnable() {
+						public void run() {
+							updateTurretViews();
+						}
+					});
+				}
+			}
+		);
 	}
 
 	private void doLaser(final boolean block) {
 		// Generate and send laser ON/OFF command
-		setCallReqParam(laserCmdObj, "state", laser);
-		sendCommand(
-			laserCmdObj,
+		CommandTemplate template = laserTemplate;
+		template.set(0, laser);
+		sendTemplateCommand(
+			null,
+			template,
 			block,
-			new CommandReplyCallback() {
+			new StatefulReplyCallback() {
 				@Override
-				public void onReply(final String reply) {
+				public void onReplyState(final String reply) {
 					// Parse JSON reply and update if valid response (TODO and result contained in reply?)
-					if (reply != null && parseCallReply(reply) != null) {
+					if (reply != null && CommandMessages.isCallReply(new ReplyReader(reply))) {
 						// Update laser state
 						lastLaser = laser;
 					}
@@ -661,11 +894,11 @@ public class BotControl extends Activity implements TouchJoystick.JoystickListen
 		sendCommand(
 			(spin == 1 ? spinUpCmdObj : spinDownCmdObj),
 			block,
-			new CommandReplyCallback() {
+			new StatefulReplyCallback() {
 				@Override
-				public void onReply(final String reply) {
+				public void onReplyState(final String reply) {
 					// Parse JSON reply and update if valid response (TODO and result contained in reply?)
-					if (reply != null && parseCallReply(reply) != null) {
+					if (reply != null && CommandMessages.isCallReply(new ReplyReader(reply))) {
 						// Update spin state
 						lastSpin = spin;
 					}
@@ -688,59 +921,47 @@ public class BotControl extends Activity implements TouchJoystick.JoystickListen
 		sendCommand(fireCmdObj, block, null);
 	}
 	
-	private void doIRRead(final boolean block) {
-		// Read IR sensor data
-		sendCommand(
-			(irReadBinary ? irBinaryCmdObj : irCmdObj),
+	private void doIRRead(final long interval, final boolean block) {
+		// Read IR sensor data, accepting cached values up to one poll interval old
+		CommandTemplate template = irTemplate;
+		if (!irReadBinary)
+			template.set(0, interval / 1000.f); // max_staleness is in seconds
+		final long sentTime = System.nanoTime();
+		sendTemplateCommand(
+			null,
+			(irReadBinary ? irBinaryTemplate : template),
 			block,
-			new CommandReplyCallback() {
+			new StatefulReplyCallback() {
+				@Override
+				public void onReplyState(final String reply) {
+					if (reply == null)
+						irPollInterval.onFailure(); // failed or dropped
+				}
+				
 				@Override
 				public void onReply(final String reply) {
 					// Parse JSON reply and update if valid response (TODO and result contained in reply?)
 					if (reply == null)
 						return;
 					
-					try {
-						JSONObject replyObj = parseCallReply(reply);
-						if (replyObj == null || !replyObj.has("call_return"))
-							return;
-						
-						// Extract IR data and update UI
-						JSONObject dataObj = replyObj.getJSONObject("call_return");
-						final double time = (irReadBinary ? -1.0 : dataObj.getDouble("time"));
-						final boolean fresh = (irReadBinary ? true : dataObj.getBoolean("fresh"));
-						final JSONObject readings = (irReadBinary ? dataObj : dataObj.getJSONObject("readings"));
-						//Log.d(TAG, "[IR] time: " + time + ", fresh: " + fresh + ", len(readings): " + readings.length());
-						runOnUiThread(new Runnable() {
-							public void run() {
-								// Update UI
-								if (txtConsole.length() > maxConsoleLength)
-									txtConsole.setText(""); // clear if full
-								txtConsole.append("[IR] time: " + time + ", fresh: " + fresh + ", len(readings): " + readings.length() + "\n");
-								Iterator<?> names = readings.keys();
-								while (names.hasNext()) {
-									String name = (String) names.next();
-									try {
-										JSONArray reading = readings.getJSONArray(name);
-										txtConsole.append("[IR] " + name +": " + reading.toString() + "\n");
-									} catch (JSONException e) {
-										// Something went wrong!
-									}
-								}
-								
-							}
-						});
-					} catch (JSONException e) {
-						Log.e(TAG, "Error parsing JSON IR reply: " + e);
+					// Extract only the fields we need, straight into primitive values
+					ReplyReader reader = new ReplyReader(reply);
+					IRTelemetrySource.Reading reading = (CommandMessages.isCallReply(reader) ? IRTelemetrySource.Reading.parse(reader, reader.field(reader.root(), "call_return"), false) : null);
+					if (reading == null) {
+						irPollInterval.onFailure();
+						return;
 					}
+					irPollInterval.onReply((System.nanoTime() - sentTime) / 1000000L, reading.fresh);
+					irSource.onPolledReading(reading); // passed on to irListener, unless the stream is back
 				}
 			}
 		);
 	}
 
 	private void doEStop(final boolean block) {
-		// Generate and send E-Stop command to stop the bot
-		sendCommand(estopCmdObj, block, null);
+		// Generate and send E-Stop command to stop the bot, ahead of (and instead of) anything still queued
+		estopCount++;
+		sendCommand(estopCmdObj, RequestQueue.PRIORITY_EMERGENCY, block, null);
 	}
 	
 	private void doKillServer(final boolean block) {
@@ -752,132 +973,136 @@ public class BotControl extends Activity implements TouchJoystick.JoystickListen
 		public void onReply(final String reply);
 	}
 
-	private void sendCommand(final String cmdStr, final boolean block, final CommandReplyCallback callback) {
-		//Log.d(TAG, "sendCommand(): forward = " + forward + ", strafe = " + strafe + ", turn = " + turn);
-		// Send this command (JSON string) to the control server,
-		//   wait for ACK, deal with concurrency issues
-		if (clientThread != null && clientThread.isAlive()) {
-			// Start a new thread to avoid blocking the main (UI) thread
-			(new Thread() {
-				public void run() {
-					//Log.d(TAG, "Sending : " + cmdStr);
-					String reply = clientThread.serviceRequestSync(cmdStr, block);
-					//Log.d(TAG, "Received: " + reply);
-					if (callback != null) {
-						callback.onReply(reply);
-					}
-				}
-			}).start();
+	/**
+	 * Reply callback that keeps state (e.g. resend flags, toggle rollback): onReplyState() runs inline on the completing thread
+	 * and is never dropped, then onReply() runs on a dispatcher worker like any other callback (and may be dropped when it is busy).
+	 * NOTE: onReplyState() may run on the socket thread; keep it short, and post any UI work with runOnUiThread().
+	 */
+	public static abstract class StatefulReplyCallback implements CommandReplyCallback {
+		public abstract void onReplyState(final String reply);
+
+		@Override
+		public void onReply(final String reply) {
+			// Nothing to display by default
 		}
 	}
 
-	private void sendCommand(final JSONObject cmdObj, final boolean block, final CommandReplyCallback callback) {
-		try {
-			sendCommand(cmdObj.toString(), block, callback);
-		}
-		catch(NullPointerException e) {
-			Log.e(TAG, "Invalid command map: " + e);
-		}
+	private ZMQClientThread.RequestReplyBundle sendCommand(final String channel, final String label, final byte[] cmdData, final boolean block, final CommandReplyCallback callback) {
+		return sendCommand(channel, label, cmdData, CommandMessages.priorityOf(label), block, callback);
 	}
 
-	private JSONObject makeCallReq(String obj_name, String method, String[] params, Object[] values) {
-		// NOTE It is easier to specify params and values in separate arrays than as a list of <key, value> pairs
-		try {
-			JSONObject cmdObj = (new JSONObject())
-					.put("type", "call_req")
-					.put("obj_name", obj_name)
-					.put("method", method)
-					.put("params", new JSONObject());
-			if (params != null && params.length > 0 && values != null && values.length == params.length) {
-				JSONObject paramsObj = cmdObj.getJSONObject("params");
-				for (int i = 0; i < params.length; i++) {
-					paramsObj.put(params[i], values[i]);
-				}
-			}
-			return cmdObj;
-		} catch (JSONException e) {
-			Log.e(TAG, "Error making JSON call_req object: " + e);
-			return null;
-		}
+	private ZMQClientThread.RequestReplyBundle sendCommand(final String channel, final String label, final byte[] cmdData, final int priority, final boolean block, final CommandReplyCallback callback) {
+		return sendCommand(channel, label, cmdData, null, priority, block, callback);
 	}
 
-	private JSONObject parseCallReply(String reply) {
-		try {
-			JSONObject replyObj = new JSONObject(reply);
-			if (replyObj.getString("type").equals("call_reply"))
-				return replyObj;
-			else {
-				Log.w(TAG, "Call reply type not favorable: " + replyObj.getString("type"));
+	private ZMQClientThread.RequestReplyBundle sendCommand(final String channel, final String label, final byte[] cmdData, final CommandTemplate template, final int priority, final boolean block, final CommandReplyCallback callback) {
+		//Log.d(TAG, "sendCommand(): forward = " + forward + ", strafe = " + strafe + ", turn = " + turn);
+		// Send this command (encoded request frame) to the control server in given priority class,
+		//   hand the reply to callback on a dispatcher worker (never blocks the calling thread; see dispatchReply());
+		//   a frame acquired from template is released to it once no socket can send it any more: after a reply, or if it was never sent
+		//   (a frame that failed after being sent may still be queued in a socket, so it is left to the GC; the caller releases it if null is returned)
+		// NOTE Commands on a channel are never dropped, they replace any older pending command on the same channel instead;
+		//   emergency commands are never dropped either, they jump the queue instead (and cancel everything pending, unless on a channel)
+		final ZMQClientThread client = clientThread;
+		final CommandDispatcher dispatcher = commandDispatcher;
+		if (client != null && client.isAlive() && dispatcher != null) {
+			if (channel == null && !block && priority != RequestQueue.PRIORITY_EMERGENCY && client.getPendingCount() > 0) {
+				Log.w(TAG, "sendCommand(): Dropped command: " + label);
+				dispatchReply(dispatcher, label, callback, null);
 				return null;
 			}
-		} catch (JSONException e) {
-			Log.e(TAG, "Error parsing JSON reply: " + e);
-			return null;
-		} catch (NullPointerException e) {
-			Log.e(TAG, "Error parsing JSON reply: " + e);
-			return null;
+			
+			//Log.d(TAG, "Sending : " + new String(cmdData));
+			ZMQClientThread.RequestReplyBundle requestReply = (channel != null ? client.serviceRequestLatest(channel, cmdData, priority) : client.serviceRequestAsync(cmdData, label, CommandMessages.isIdempotent(label), priority));
+			if (callback != null || template != null) {
+				// NOTE One listener per command, for both recycling the frame and dispatching the reply
+				requestReply.addOnReplyListener(new ZMQClientThread.RequestReplyBundle.OnReplyListener() {
+					@Override
+					public void onReply(ZMQClientThread.RequestReplyBundle bundle) {
+						//Log.d(TAG, "Received: " + bundle.getReply());
+						if (template != null && (bundle.getReply() != null || !bundle.wasSent()))
+							template.release(cmdData);
+						dispatchReply(dispatcher, bundle.label, callback, bundle.getReply());
+					}
+				});
+			}
+			return requestReply;
 		}
+		return null;
 	}
 
-	private JSONObject makePingReq() {
-		try {
-			JSONObject cmdObj = (new JSONObject()).put("type", "ping_req");
-			return cmdObj;
-		} catch (JSONException e) {
-			Log.e(TAG, "Error making JSON ping_req object: " + e);
-			return null;
+	private void dispatchReply(CommandDispatcher dispatcher, final String label, final CommandReplyCallback callback, final String reply) {
+		// NOTE State kept by the callback is updated right here, so that it never gets lost with a dropped task
+		if (callback == null)
+			return;
+		if (callback instanceof StatefulReplyCallback)
+			((StatefulReplyCallback) callback).onReplyState(reply);
+		if (!dispatcher.execute(new Runnable() {
+			public void run() {
+				long startTime = System.nanoTime();
+				callback.onReply(reply);
+				latencyStats.recordCallback(label, System.nanoTime() - startTime);
+			}
+		})) {
+			Log.w(TAG, "dispatchReply(): Dispatcher busy, dropped reply callback (" + dispatcher + ")");
 		}
 	}
 
-	private JSONObject makeExitReq() {
-		try {
-			JSONObject cmdObj = (new JSONObject()).put("type", "exit_req");
-			return cmdObj;
-		} catch (JSONException e) {
-			Log.e(TAG, "Error making JSON exit_req object: " + e);
-			return null;
-		}
+	private void sendCommand(final JSONObject cmdObj, final boolean block, final CommandReplyCallback callback) {
+		sendCommand(cmdObj, CommandMessages.priorityOf(CommandMessages.commandLabel(cmdObj)), block, callback);
 	}
 
-	private void setCallReqParam(JSONObject cmdObj, String param, Object value) {
-		try {
-			JSONObject paramsObj = cmdObj.getJSONObject("params");
-			paramsObj.put(param, value);
-		} catch (JSONException e) {
-			Log.e(TAG, "Error setting call_req param (silent error): " + e);
+	private void sendCommand(final JSONObject cmdObj, final int priority, final boolean block, final CommandReplyCallback callback) {
+		byte[] cmdData = commandCodec.encode(cmdObj);
+		if (cmdData == null) {
+			Log.e(TAG, "Invalid command map: " + cmdObj);
+			return;
 		}
+		sendCommand(null, CommandMessages.commandLabel(cmdObj), cmdData, priority, block, callback);
 	}
 
-	@Override
-	public void onMessage(String message) {
-		String messageParts[] = message.split("\\s", 2); // split message into 2 parts on first whitespace
-		if (messageParts.length < 2) {
-			Log.w(TAG, "onMessage(): Ignoring invalid message: \"" + message + "\"");
-			return;
-		}
+	private void sendTemplateCommand(final String channel, final CommandTemplate template, final boolean block, final CommandReplyCallback callback) {
+		sendTemplateCommand(channel, template, CommandMessages.priorityOf(template.getLabel()), block, callback);
+	}
 
-		String topic = messageParts[0].trim();
-		String data = messageParts[1].trim();
-		try {
-			// Handle IR array updates
-			if (topic.startsWith("ir")) {
-				Log.d(TAG, "onMessage(): IR update:- topic: " + topic + ", data: " + data);
-				// TODO parse IR array values from message and update a representative view
-				/*
-				JsonReader myReader = new JsonReader(new StringReader(data));
-				runOnUiThread(new Runnable() {
-					public void run() {
-						updateIRViews();
-					};
-				});
-				 */
-			}
-		}
-		catch (NumberFormatException e) {
-			Log.w(TAG, "onMessage(): [topic=" + topic + "] Ignoring invalid data: \"" + data + "\"");
-		}
+	private void sendTemplateCommand(final String channel, final CommandTemplate template, final int priority, final boolean block, final CommandReplyCallback callback) {
+		// Send current frame of a template, and recycle the frame once the request is done
+		byte[] cmdData = template.acquire();
+		if (sendCommand(channel, template.getLabel(), cmdData, template, priority, block, callback) == null)
+			template.release(cmdData); // not sent
+	}
+
+	private void compileTemplates(CommandCodec codec) {
+		driveTemplate = compileTemplate(codec, driveCmdObj, new String[] { "forward", "strafe" });
+		turretTemplate = compileTemplate(codec, turretCmdObj, new String[] { "yaw", "pitch" });
+		laserTemplate = compileTemplate(codec, laserCmdObj, new String[] { "state" });
+		irTemplate = compileTemplate(codec, irCmdObj, new String[] { "max_staleness" });
+		irBinaryTemplate = compileTemplate(codec, irBinaryCmdObj, new String[] { "thresh" });
+	}
+
+	private CommandTemplate compileTemplate(CommandCodec codec, JSONObject cmdObj, String[] slotParams) {
+		CommandTemplate template = codec.compile(cmdObj, slotParams);
+		template.setLabel(CommandMessages.commandLabel(cmdObj));
+		return template;
 	}
 
+	private final IRTelemetrySource.OnIRReadingListener irListener = new IRTelemetrySource.OnIRReadingListener() {
+		@Override
+		public void onIRReading(final IRTelemetrySource.Reading reading) {
+			// Handle IR updates, streamed or polled: keep history, then show
+			//Log.d(TAG, "onIRReading(): " + reading);
+			irHistory.add(reading);
+			runOnUiThread(new Runnable() {
+				public void run() {
+					// Update UI
+					if (txtConsole.length() > maxConsoleLength)
+						txtConsole.setText(""); // clear if full
+					txtConsole.append(reading + "\n");
+				}
+			});
+		}
+	};
+
 	private void updateDriveViews() {
 		txtForward.setText(String.format("%7.2f", forward));
 		txtStrafe.setText(String.format("%7.2f", strafe));
@@ -0,0 +1,360 @@
+package edu.ncsu.ieee.botcontrol;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+
+import android.util.Log;
+
+/**
+ * Simulated bot, to exercise the whole client without hardware.
+ *
+ * Plugs into a ZMQServerThread as its request listener factory and answers the same protocol as the bot: call_req for
+ * driver.move_forward_strafe, turret.aim, gun.set_laser/spin_up/stop/fire and ir_hub.read_cached/read_binary, batch_req,
+ * ping_req and exit_req. Keeps simulated state (position in a square arena, turret slewing towards its target, gun) and
+ * generates synthetic IR arrays from distances to the arena walls. Publishes "turret_yaw", "turret_pitch" and "ir" on its own
+ * PUB socket at configurable rates, as [topic][payload] messages.
+ *
+ * Usage: <pre>
+ *   BotSimulator sim = new BotSimulator();
+ *   sim.start(); // simulation and publishing
+ *   server.setOnRequestListenerFactory(sim);
+ *   server.start();
+ * </pre>
+ * NOTE: Only JSON requests are understood (OnRequestListener hands requests over as text), so ping_reply always picks the
+ *   json codec. exit_req is acknowledged but doesn't stop the simulator.
+ */
+public class BotSimulator implements ZMQServerThread.OnRequestListenerFactory {
+	private static final String TAG = "BotSimulator";
+	
+	public static final int PUB_PORT = 60001;
+	public static final String[] IR_SENSORS = { "front", "back", "left", "right" };
+	public static final int IR_VALUES = 5; // values per IR array
+	
+	private static final String PUB_BIND_HOST = "0.0.0.0";
+	private static final int SIM_RATE = 100; // Hz; simulation step rate
+	private static final int IR_SAMPLE_RATE = 20; // Hz; how often the IR hub refreshes its cached reading
+	private static final double ARENA_SIZE = 2.4; // m; square, bot starts in the middle
+	private static final double MAX_SPEED = 0.5; // m/s at full forward/strafe (100)
+	private static final double TURRET_SLEW_RATE = 180.0; // deg/s
+	private static final double IR_SPREAD = 0.35; // rad; angle between neighboring sensors in an array
+	private static final double IR_SCALE = 150.0; // value at 1 m (roughly 1/distance, like analog IR rangers)
+	private static final double IR_NOISE = 8.0; // std. dev. of noise added to each value
+	private static final int IR_MAX = 1023;
+	
+	/** Simulated bot state; shared by the simulation thread and request handlers. */
+	private static class State {
+		final long startTime = System.nanoTime();
+		final Random random = new Random();
+		
+		double x = ARENA_SIZE / 2, y = ARENA_SIZE / 2; // m
+		double forward = 0, strafe = 0; // -100..100
+		double yaw = 90, pitch = 90; // deg; current turret angles
+		double yawTarget = 90, pitchTarget = 90; // deg
+		int laser = 0;
+		boolean spinning = false;
+		long shots = 0;
+		
+		final float[][] ir = new float[IR_SENSORS.length][IR_VALUES]; // latest IR sample
+		double irTime = -1; // s; time of latest IR sample
+		long irSeq = 0; // no. of IR samples taken
+		long irSeqRead = 0; // IR sample last returned by read_cached
+		
+		/** Seconds since simulator start. */
+		double now() {
+			return (System.nanoTime() - startTime) / 1e9;
+		}
+		
+		synchronized void step(double dt) {
+			x = Math.min(ARENA_SIZE, Math.max(0, x + strafe / 100.0 * MAX_SPEED * dt));
+			y = Math.min(ARENA_SIZE, Math.max(0, y + forward / 100.0 * MAX_SPEED * dt));
+			yaw = slew(yaw, yawTarget, TURRET_SLEW_RATE * dt);
+			pitch = slew(pitch, pitchTarget, TURRET_SLEW_RATE * dt);
+		}
+		
+		synchronized void sampleIR() {
+			// Each array faces a wall; its sensors fan out around that direction, so outer sensors see the wall further away
+			double[] wallDistances = { ARENA_SIZE - y, y, x, ARENA_SIZE - x }; // front, back, left, right
+			for (int s = 0; s < IR_SENSORS.length; s++) {
+				for (int i = 0; i < IR_VALUES; i++) {
+					double angle = (i - (IR_VALUES - 1) / 2.0) * IR_SPREAD;
+					double distance = Math.max(0.05, wallDistances[s]) / Math.cos(angle);
+					double value = IR_SCALE / distance + random.nextGaussian() * IR_NOISE;
+					ir[s][i] = (float) Math.min(IR_MAX, Math.max(0, Math.round(value)));
+				}
+			}
+			irTime = now();
+			irSeq++;
+		}
+		
+		private static double slew(double current, double target, double maxStep) {
+			double delta = target - current;
+			return (Math.abs(delta) <= maxStep ? target : current + Math.signum(delta) * maxStep);
+		}
+	}
+	
+	/** Steps the simulation and publishes telemetry, on its own thread. */
+	private class Publisher extends ZMQThread {
+		private final String bindAddress;
+		
+		Publisher(String bindAddress) {
+			super(ZMQ.PUB);
+			this.bindAddress = bindAddress;
+		}
+		
+		@Override
+		public void run() {
+			socket.bind(bindAddress);
+			Log.i(TAG, "run(): Publishing at " + bindAddress + " (turret: " + turretRate + " Hz, ir: " + irRate + " Hz)");
+			
+			long stepPeriod = 1000000000L / SIM_RATE; // ns
+			long lastStep = System.nanoTime(), nextTurret = lastStep, nextIR = lastStep, nextSample = lastStep;
+			StringBuilder payload = new StringBuilder();
+			while (!isTerminating()) {
+				try {
+					long now = System.nanoTime();
+					state.step((now - lastStep) / 1e9);
+					lastStep = now;
+					if (now >= nextSample) {
+						state.sampleIR();
+						nextSample += 1000000000L / IR_SAMPLE_RATE;
+					}
+					
+					int rate = turretRate;
+					if (rate > 0 && now >= nextTurret) {
+						synchronized (state) {
+							publish("turret_yaw", String.valueOf((float) state.yaw));
+							publish("turret_pitch", String.valueOf((float) state.pitch));
+						}
+						nextTurret = Math.max(nextTurret + 1000000000L / rate, now - stepPeriod); // don't burst to catch up
+					}
+					rate = irRate;
+					if (rate > 0 && now >= nextIR) {
+						payload.setLength(0);
+						appendIRReading(payload, true);
+						publish("ir", payload.toString());
+						nextIR = Math.max(nextIR + 1000000000L / rate, now - stepPeriod);
+					}
+					
+					Thread.sleep(stepPeriod / 1000000L);
+				} catch (InterruptedException e) {
+					Log.d(TAG, "run(): Interrupted!");
+					break;
+				} catch (ZMQException e) {
+					Log.d(TAG, "run(): ZMQException (expected - ZMQ context terminated): " + e);
+					if (e.getErrorCode() == ZMQ.Error.ETERM.getCode()) {
+						break;
+					}
+				}
+			}
+			
+			// Close socket
+			Log.d(TAG, "run(): Closing socket...");
+			closeSocket();
+			Log.d(TAG, "run(): Done.");
+		}
+		
+		private void publish(String topic, String payload) {
+			socket.sendMore(topic);
+			socket.send(payload);
+			publishedCount++;
+		}
+	}
+	
+	/** Handles requests for one server worker (each has its own reader). */
+	private class Handler implements ZMQServerThread.OnRequestListener {
+		private final ReplyReader reader = new ReplyReader();
+		
+		@Override
+		public String onRequest(String request) {
+			requestCount.incrementAndGet();
+			reader.reset(request);
+			int root = reader.root();
+			if (root < 0)
+				return errorReply("Invalid request (not a JSON object)");
+			if (reader.isType("call_req"))
+				return call(root);
+			if (reader.isType("batch_req")) {
+				StringBuilder reply = new StringBuilder("{\"type\": \"batch_reply\", \"replies\": [");
+				int i = 0;
+				for (int element = reader.firstElement(reader.field(root, "calls")); element >= 0; element = reader.nextElement(element), i++)
+					reply.append(i > 0 ? ", " : "").append(call(element));
+				return reply.append("]}").toString();
+			}
+			if (reader.isType("ping_req"))
+				return "{\"type\": \"ping_reply\", \"codec\": \"" + JsonCommandCodec.NAME + "\", \"batch\": true}";
+			if (reader.isType("exit_req")) {
+				Log.i(TAG, "onRequest(): exit_req received (ignored, simulator keeps running)");
+				return "{\"type\": \"exit_reply\"}";
+			}
+			return errorReply("Unknown request type: " + reader.readString(reader.field(root, "type")));
+		}
+		
+		/** Service the call_req object at pos. */
+		private String call(int pos) {
+			callCount.incrementAndGet();
+			String objName = reader.readString(reader.field(pos, "obj_name"));
+			String method = reader.readString(reader.field(pos, "method"));
+			int params = reader.field(pos, "params");
+			if ("driver".equals(objName) && "move_forward_strafe".equals(method)) {
+				double forward = clamp(reader.readDouble(reader.field(params, "forward"), 0), -100, 100);
+				double strafe = clamp(reader.readDouble(reader.field(params, "strafe"), 0), -100, 100);
+				synchronized (state) {
+					state.forward = forward;
+					state.strafe = strafe;
+				}
+				return callReply("true");
+			}
+			if ("turret".equals(objName) && "aim".equals(method)) {
+				double yaw = clamp(reader.readDouble(reader.field(params, "yaw"), 90), 0, 180);
+				double pitch = clamp(reader.readDouble(reader.field(params, "pitch"), 90), 0, 180);
+				synchronized (state) {
+					state.yawTarget = yaw;
+					state.pitchTarget = pitch;
+				}
+				return callReply("true");
+			}
+			if ("gun".equals(objName)) {
+				synchronized (state) {
+					if ("set_laser".equals(method)) {
+						state.laser = (int) reader.readDouble(reader.field(params, "state"), 0);
+						return callReply("true");
+					}
+					if ("spin_up".equals(method) || "stop".equals(method)) {
+						state.spinning = method.equals("spin_up");
+						return callReply("true");
+					}
+					if ("fire".equals(method)) {
+						if (state.spinning)
+							state.shots++;
+						return callReply(String.valueOf(state.spinning)); // can only fire while spun up
+					}
+				}
+			}
+			if ("ir_hub".equals(objName) && "read_cached".equals(method)) {
+				double maxStaleness = reader.readDouble(reader.field(params, "max_staleness"), 0);
+				StringBuilder reading = new StringBuilder();
+				synchronized (state) {
+					if (state.now() - state.irTime > maxStaleness)
+						state.sampleIR(); // cache too old for caller, take a new reading
+					appendIRReading(reading, state.irSeq > state.irSeqRead);
+					state.irSeqRead = state.irSeq;
+				}
+				return callReply(reading.toString());
+			}
+			if ("ir_hub".equals(objName) && "read_binary".equals(method)) {
+				double thresh = reader.readDouble(reader.field(params, "thresh"), 0);
+				StringBuilder reading = new StringBuilder("{");
+				synchronized (state) {
+					for (int s = 0; s < IR_SENSORS.length; s++) {
+						reading.append(s > 0 ? ", " : "").append('"').append(IR_SENSORS[s]).append("\": [");
+						for (int i = 0; i < IR_VALUES; i++)
+							reading.append(i > 0 ? ", " : "").append(state.ir[s][i] >= thresh ? 1 : 0);
+						reading.append(']');
+					}
+				}
+				return callReply(reading.append('}').toString());
+			}
+			return errorReply("Unknown call: " + objName + "." + method);
+		}
+	}
+	
+	private final State state = new State();
+	private volatile int turretRate = 10; // Hz; 0 = don't publish
+	private volatile int irRate = 10; // Hz; 0 = don't publish
+	private String pubBindHost = PUB_BIND_HOST;
+	private int pubPort = PUB_PORT;
+	private Publisher publisher = null;
+	
+	// Stats (request stats are counted by all workers at once)
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong callCount = new AtomicLong();
+	private final AtomicLong errorCount = new AtomicLong();
+	private volatile long publishedCount = 0; // NOTE: Only written on the publisher thread
+	
+	/** Host address and port to publish telemetry on. Call before start(). */
+	public void setPublishAddress(String host, int port) {
+		pubBindHost = host;
+		pubPort = port;
+	}
+	
+	/** Rates (Hz) to publish turret angles and IR readings at; 0 to not publish a topic (e.g. to test IR polling). */
+	public void setPublishRates(int turretRate, int irRate) {
+		this.turretRate = Math.max(0, turretRate);
+		this.irRate = Math.max(0, irRate);
+	}
+	
+	/** Start simulating and publishing. */
+	public synchronized void start() {
+		if (publisher != null)
+			return;
+		publisher = new Publisher(ZMQServerThread.SERVER_PROTOCOL + "://" + pubBindHost + ":" + pubPort);
+		publisher.start();
+	}
+	
+	public synchronized void stop() {
+		if (publisher != null) {
+			publisher.term();
+			publisher = null;
+		}
+	}
+	
+	@Override
+	public ZMQServerThread.OnRequestListener createOnRequestListener(int worker) {
+		return new Handler();
+	}
+	
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+	
+	public long getCallCount() {
+		return callCount.get();
+	}
+	
+	public long getErrorCount() {
+		return errorCount.get();
+	}
+	
+	public long getPublishedCount() {
+		return publishedCount;
+	}
+	
+	@Override
+	public String toString() {
+		synchronized (state) {
+			return String.format("BotSimulator[pos: (%.2f, %.2f) m, drive: (%.0f, %.0f), turret: (%.0f, %.0f) deg, laser: %d, spinning: %b, shots: %d]",
+				state.x, state.y, state.forward, state.strafe, state.yaw, state.pitch, state.laser, state.spinning, state.shots);
+		}
+	}
+	
+	/** Append latest IR sample as {"time": .., "fresh": .., "readings": {name: [..], ..}}. */
+	private void appendIRReading(StringBuilder builder, boolean fresh) {
+		synchronized (state) {
+			builder.append("{\"time\": ").append(state.irTime).append(", \"fresh\": ").append(fresh).append(", \"readings\": {");
+			for (int s = 0; s < IR_SENSORS.length; s++) {
+				builder.append(s > 0 ? ", " : "").append('"').append(IR_SENSORS[s]).append("\": [");
+				for (int i = 0; i < IR_VALUES; i++)
+					builder.append(i > 0 ? ", " : "").append(state.ir[s][i]);
+				builder.append(']');
+			}
+			builder.append("}}");
+		}
+	}
+	
+	private static String callReply(String callReturn) {
+		return "{\"type\": \"call_reply\", \"call_return\": " + callReturn + "}";
+	}
+	
+	private String errorReply(String message) {
+		errorCount.incrementAndGet();
+		Log.w(TAG, "errorReply(): " + message);
+		return "{\"type\": \"error_reply\", \"err_msg\": \"" + message.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+	}
+	
+	private static double clamp(double value, double min, double max) {
+		return Math.min(max, Math.max(min, value));
+	}
+}
@@ -0,0 +1,20 @@
+package edu.ncsu.ieee.botcontrol;
+
+import org.json.JSONObject;
+
+/**
+ * Encodes command objects (call_req, ping_req, exit_req, as built by BotControl) into request frames for the wire.
+ * 
+ * Replies are always JSON text, irrespective of the codec used for requests. Codecs also define how several call_req frames
+ * are combined into one batch_req (see ZMQClientThread.setBatching()); the corresponding batch_reply is JSON as well.
+ */
+public interface CommandCodec extends BatchFormat {
+	/** Name used to negotiate this codec with the server (see ping_req "codecs" and ping_reply "codec"). */
+	public String getName();
+	
+	/** Encode given command object into a request frame; returns null if it is not a valid command. */
+	public byte[] encode(JSONObject cmdObj);
+	
+	/** Pre-encode given call_req with given params as patchable slots; never returns null (falls back to CommandTemplate.Encoding). */
+	public CommandTemplate compile(JSONObject cmdObj, String[] slotParams);
+}
@@ -0,0 +1,117 @@
+package edu.ncsu.ieee.botcontrol;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, reusable pool of worker threads for command dispatch work (e.g. handling replies) that must stay off the UI and socket threads.
+ * 
+ * Replaces spawning a new Thread per command: a fixed number of workers drain a bounded task queue,
+ * and the queue policy decides what happens when the queue is full. NOTE: Tasks may be dropped, so don't keep state in them.
+ */
+public class CommandDispatcher {
+	/** What to do with a task when all workers are busy and the queue is full. */
+	public enum QueuePolicy {
+		DROP_NEWEST, ///< Discard the task being submitted
+		DROP_OLDEST, ///< Discard the oldest queued task, then queue the new one
+		CALLER_RUNS  ///< Run the task on the submitting thread (throttles the submitter; NOTE: for reply callbacks, that is the socket thread)
+	}
+	
+	private final ThreadPoolExecutor executor;
+	private final AtomicLong rejectedCount = new AtomicLong(0);
+	
+	public CommandDispatcher(int poolSize, int queueCapacity, QueuePolicy queuePolicy) {
+		executor = new ThreadPoolExecutor(
+				poolSize, poolSize, // fixed pool size
+				0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity),
+				new WorkerThreadFactory(),
+				makeRejectionHandler(queuePolicy));
+		executor.prestartAllCoreThreads(); // avoid thread creation on the first few commands
+	}
+	
+	/** Queue a task for execution. Returns false if it was dropped (queue full under DROP_NEWEST, or dispatcher shut down). */
+	public boolean execute(Runnable task) {
+		try {
+			executor.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+	
+	/** Stop accepting tasks; already queued tasks still run. */
+	public void shutdown() {
+		executor.shutdown();
+	}
+	
+	/** Approximate no. of workers currently running a task. */
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+	
+	/** No. of tasks waiting for a worker. */
+	public int getQueuedCount() {
+		return executor.getQueue().size();
+	}
+	
+	/** Approximate no. of tasks that have finished running. */
+	public long getCompletedCount() {
+		return executor.getCompletedTaskCount();
+	}
+	
+	/** No. of tasks dropped (including ones evicted under DROP_OLDEST). */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+	
+	@Override
+	public String toString() {
+		return "CommandDispatcher[active=" + getActiveCount() + ", queued=" + getQueuedCount() + ", completed=" + getCompletedCount() + ", rejected=" + getRejectedCount() + "]";
+	}
+	
+	private RejectedExecutionHandler makeRejectionHandler(final QueuePolicy queuePolicy) {
+		return new RejectedExecutionHandler() {
+			@Override
+			public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+				if (!executor.isShutdown()) {
+					switch (queuePolicy) {
+					case DROP_OLDEST:
+						if (executor.getQueue().poll() != null)
+							rejectedCount.incrementAndGet(); // count the evicted task, new one gets in
+						if (executor.getQueue().offer(task))
+							return;
+						break;
+					
+					case CALLER_RUNS:
+						task.run();
+						return;
+					
+					case DROP_NEWEST:
+						break;
+					}
+				}
+				rejectedCount.incrementAndGet();
+				throw new RejectedExecutionException("Task dropped"); // let execute() report it
+			}
+		};
+	}
+	
+	/** Names workers for easier debugging, and makes them daemons so they never keep the process alive. */
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger threadCount = new AtomicInteger(0);
+		
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "CommandDispatcher-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package edu.ncsu.ieee.botcontrol;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+/** Helpers to make and check protocol messages (call_req, ping_req etc.). */
+public class CommandMessages {
+	private static final String TAG = "CommandMessages";
+	
+	/** Make a call_req message for given method of given object, with given params (may be null). Returns null on error. */
+	public static JSONObject makeCallReq(String obj_name, String method, String[] params, Object[] values) {
+		// NOTE It is easier to specify params and values in separate arrays than as a list of <key, value> pairs
+		try {
+			JSONObject cmdObj = (new JSONObject())
+					.put("type", "call_req")
+					.put("obj_name", obj_name)
+					.put("method", method)
+					.put("params", new JSONObject());
+			if (params != null && params.length > 0 && values != null && values.length == params.length) {
+				JSONObject paramsObj = cmdObj.getJSONObject("params");
+				for (int i = 0; i < params.length; i++) {
+					paramsObj.put(params[i], values[i]);
+				}
+			}
+			return cmdObj;
+		} catch (JSONException e) {
+			Log.e(TAG, "Error making JSON call_req object: " + e);
+			return null;
+		}
+	}
+	
+	/** Make a ping_req message offering given capabilities (codecs in order of preference; batch_req support). */
+	public static JSONObject makePingReq(boolean offerBinaryCodec, boolean offerBatching) {
+		try {
+			JSONObject cmdObj = (new JSONObject())
+					.put("type", "ping_req")
+					.put("codecs", (offerBinaryCodec ? new JSONArray().put(BinaryCommandCodec.NAME) : new JSONArray()).put(JsonCommandCodec.NAME)) // in order of preference
+					.put("batch", offerBatching);
+			return cmdObj;
+		} catch (JSONException e) {
+			Log.e(TAG, "Error making JSON ping_req object: " + e);
+			return null;
+		}
+	}
+	
+	public static JSONObject makeExitReq() {
+		try {
+			JSONObject cmdObj = (new JSONObject()).put("type", "exit_req");
+			return cmdObj;
+		} catch (JSONException e) {
+			Log.e(TAG, "Error making JSON exit_req object: " + e);
+			return null;
+		}
+	}
+	
+	/** Set a param of a call_req message in place. */
+	public static void setCallReqParam(JSONObject cmdObj, String param, Object value) {
+		try {
+			JSONObject paramsObj = cmdObj.getJSONObject("params");
+			paramsObj.put(param, value);
+		} catch (JSONException e) {
+			Log.e(TAG, "Error setting call_req param (silent error): " + e);
+		}
+	}
+	
+	/** Check if a reply is a call_reply (logs anything else). */
+	public static boolean isCallReply(ReplyReader reader) {
+		// Check reply type without parsing the rest of the reply
+		if (reader.isType("call_reply"))
+			return true;
+		if (reader.root() < 0)
+			Log.e(TAG, "Error parsing JSON reply: not an object");
+		else
+			Log.w(TAG, "Call reply type not favorable: " + reader.readString(reader.field(reader.root(), "type")));
+		return false;
+	}
+	
+	/** Name to record stats under: "obj_name.method" for calls, else message type. */
+	public static String commandLabel(JSONObject cmdObj) {
+		String objName = cmdObj.optString("obj_name", null);
+		return (objName != null ? objName + "." + cmdObj.optString("method") : cmdObj.optString("type"));
+	}
+	
+	/**
+	 * Check if the command with given label (see commandLabel()) may be resent when its reply is lost, i.e. repeating it does no harm.
+	 * Setpoints, reads and pings are; firing (one shot per request) and exit requests are not.
+	 */
+	public static boolean isIdempotent(String label) {
+		return !("gun.fire".equals(label) || "exit_req".equals(label));
+	}
+	
+	/**
+	 * Default priority class (RequestQueue.PRIORITY_*) of the command with given label: sensor reads are telemetry, pings and exit
+	 * requests are admin, anything else is control. Emergency commands (e.g. E-stop) look like control commands, so the sender marks them.
+	 */
+	public static int priorityOf(String label) {
+		if (label == null)
+			return RequestQueue.PRIORITY_CONTROL;
+		if (label.startsWith("ir_hub."))
+			return RequestQueue.PRIORITY_TELEMETRY;
+		if (label.equals("ping_req") || label.equals("exit_req"))
+			return RequestQueue.PRIORITY_ADMIN;
+		return RequestQueue.PRIORITY_CONTROL;
+	}
+}
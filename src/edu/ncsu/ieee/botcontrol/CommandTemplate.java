@@ -0,0 +1,98 @@
+package edu.ncsu.ieee.botcontrol;
+
+import java.util.ArrayDeque;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A pre-encoded command frame with numeric slots that are patched in place, for commands sent at a high rate.
+ * 
+ * Usage: set() slot values (slots are numbered in the order of the params given to CommandCodec.compile()), then acquire() a frame
+ * to hand to the client, and release() it once no socket can still send it: after a reply, or if the request was done without ever
+ * being sent (see RequestReplyBundle.wasSent()); a frame that failed after being sent is left to the GC. Released frames are recycled,
+ * so in steady state neither patching nor acquiring allocates (checked by CommandPathBench's template.*.patchAcquire). Sending the
+ * frame still allocates a request bundle and its reply listener per command, plus a dispatcher task if it has a reply callback.
+ */
+public abstract class CommandTemplate {
+	private static final int MAX_POOLED_FRAMES = 8; // frames beyond this (e.g. after a long stall) are left to the GC
+	
+	private final ArrayDeque<byte[]> pool = new ArrayDeque<byte[]>(MAX_POOLED_FRAMES);
+	
+	protected final byte[] frame; ///< Working frame, patched in place by patch()
+	private volatile String label = null; ///< Name to record stats under (e.g. "obj_name.method")
+	
+	protected CommandTemplate(byte[] frame) {
+		this.frame = frame;
+	}
+	
+	public String getLabel() {
+		return label;
+	}
+	
+	public void setLabel(String label) {
+		this.label = label;
+	}
+	
+	/** Set given slot to given value. */
+	public synchronized void set(int slot, float value) {
+		patch(slot, value);
+	}
+	
+	/** Write given value into the working frame. NOTE: Called with template lock held. */
+	protected abstract void patch(int slot, float value);
+	
+	/** Get a frame holding current slot values, to be sent as a request and then released. */
+	public synchronized byte[] acquire() {
+		byte[] copy = pool.pollFirst();
+		if (copy == null)
+			copy = new byte[frame.length];
+		System.arraycopy(frame, 0, copy, 0, frame.length);
+		return copy;
+	}
+	
+	/** Return a frame obtained from acquire() for reuse. NOTE: Only call once no socket can still send it (ZMQ doesn't copy frames). */
+	public synchronized void release(byte[] copy) {
+		if (copy != null && copy.length == frame.length && pool.size() < MAX_POOLED_FRAMES)
+			pool.addFirst(copy);
+	}
+	
+	/** Fallback template for commands a codec can't patch in place: updates a copy of the command object and encodes it on every acquire(). */
+	public static class Encoding extends CommandTemplate {
+		private final CommandCodec codec;
+		private final JSONObject cmdObj;
+		private final String[] slotParams;
+		
+		public Encoding(CommandCodec codec, JSONObject cmdObj, String[] slotParams) {
+			super(null);
+			this.codec = codec;
+			this.slotParams = slotParams;
+			JSONObject cmdObjCopy = null;
+			try {
+				cmdObjCopy = new JSONObject(cmdObj.toString()); // private copy, so that set() doesn't touch the caller's object
+			} catch (JSONException e) {
+				// Not expected: toString() always yields valid JSON
+			}
+			this.cmdObj = cmdObjCopy;
+		}
+		
+		@Override
+		protected void patch(int slot, float value) {
+			try {
+				cmdObj.getJSONObject("params").put(slotParams[slot], value);
+			} catch (JSONException e) {
+				// Ignore, command is sent with its previous value
+			}
+		}
+		
+		@Override
+		public synchronized byte[] acquire() {
+			return codec.encode(cmdObj);
+		}
+		
+		@Override
+		public synchronized void release(byte[] copy) {
+			// Nothing to recycle
+		}
+	}
+}
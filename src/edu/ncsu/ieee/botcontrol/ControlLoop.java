@@ -0,0 +1,74 @@
+package edu.ncsu.ieee.botcontrol;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Calls a listener at a fixed rate on a dedicated thread, e.g. to sample control inputs and send commands.
+ * 
+ * This decouples command rate from input event rate (which varies a lot between devices): inputs just update state,
+ * and each tick decides what needs to be sent.
+ */
+public class ControlLoop {
+	private static final String TAG = "ControlLoop";
+	
+	public interface OnTickListener {
+		public void onTick();
+	}
+	
+	private final int rate; // Hz
+	private final OnTickListener listener;
+	private ScheduledExecutorService executor = null;
+	
+	public ControlLoop(int rate, OnTickListener listener) {
+		if (rate <= 0)
+			throw new IllegalArgumentException("Control loop rate must be positive: " + rate);
+		this.rate = rate;
+		this.listener = listener;
+	}
+	
+	public int getRate() {
+		return rate;
+	}
+	
+	/** Start ticking (no-op if already running). */
+	public synchronized void start() {
+		if (executor != null)
+			return;
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, TAG);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					listener.onTick();
+				} catch (RuntimeException e) {
+					// Don't let one bad tick cancel all future ticks (scheduleAtFixedRate stops on exceptions)
+					Log.e(TAG, "onTick(): Exception: " + e);
+				}
+			}
+		}, 0, 1000000L / rate, TimeUnit.MICROSECONDS);
+	}
+	
+	/** Stop ticking; a tick already in progress is allowed to finish. */
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+	
+	public synchronized boolean isRunning() {
+		return (executor != null);
+	}
+}
@@ -0,0 +1,98 @@
+package edu.ncsu.ieee.botcontrol;
+
+/**
+ * Convenience class for specifying control ranges.
+ *
+ * Optionally filters changes to a control value before they are sent (see filterChange()): quantization to the resolution the bot
+ * can actually act on, hysteresis around level boundaries, and a deadband on change, so that finger tremor doesn't turn into a
+ * stream of commands. NOTE: Filter settings are per instance; configure them before filtering on another thread (e.g. a control loop).
+ */
+public class ControlRange {
+	public float min, zero_min, zero, zero_max, max;
+	public float half_range, offset;
+	
+	public float resolution = 0.f; // smallest step the bot resolves; values are quantized to zero + k * resolution (0: off)
+	public float deadband = 0.f; // changes smaller than this (from the last value sent) are suppressed (0: off)
+	public float hysteresis = 0.f; // steps (0..0.5) a value must go past the midpoint between levels to switch level
+	
+	/** Initialize control range members, compute some useful derived values. */
+	public ControlRange(float min, float zero_min, float zero, float zero_max, float max) {
+		// NOTE min < zero_min <= zero <= zero_max < max
+		this.min = min;
+		this.zero_min = zero_min;
+		this.zero = zero;
+		this.zero_max = zero_max;
+		this.max = max;
+		
+		this.half_range = (this.max - this.min) / 2;
+		this.offset = (this.min + this.max) / 2;
+	}
+	
+	/** Convert a normalized input value in [-1, 1] to a range-limited control value. */
+	public float fromNormalizedInput(float value) {
+		return applyLimits(offset + half_range * value);
+	}
+	
+	/** Convert a range-limited control value to a normalized input value in [-1, 1]. */
+	public float toNormalizedInput(float value) {
+		return (value - offset) / half_range;
+	}
+	
+	/** Apply range limits to control value. */
+	public float applyLimits(float value) {
+		return
+				(value < min
+						? min
+								: (value < zero_min
+										? value
+												: (value <= zero_max
+												? zero
+														: (value <= max
+														? value
+																: max
+																)
+														)
+										)
+						);
+	}
+	
+	/** Configure change filtering (see filterChange()); all 0 turns it off. */
+	public void setChangeFilter(float resolution, float deadband, float hysteresis) {
+		this.resolution = Math.max(0.f, resolution);
+		this.deadband = Math.max(0.f, deadband);
+		this.hysteresis = Math.max(0.f, Math.min(0.5f, hysteresis));
+	}
+	
+	/**
+	 * Filter a range-limited control value against the last one sent: returns the value to send now, which is last if the change
+	 * is suppressed. The value is quantized to resolution, staying on last's level unless it has moved (0.5 + hysteresis) steps
+	 * away, and held at last if it has moved less than deadband. Limits (min, zero, max) always get through unchanged, so that
+	 * stopping or going full out is never held back. A quantized value is always a valid control value, i.e. unchanged by applyLimits().
+	 */
+	public float filterChange(float value, float last) {
+		if (value == last)
+			return last;
+		float result = value;
+		if (value != min && value != zero && value != max) {
+			if (resolution > 0) {
+				if (Math.abs(value - last) < resolution * (0.5f + hysteresis))
+					result = last;
+				else
+					result = quantize(value);
+			}
+			if (Math.abs(result - last) < deadband)
+				result = last;
+		}
+		return result;
+	}
+	
+	/** Round a range-limited value to the nearest level zero + k * resolution, stepping away from levels inside the zero band (other than zero). */
+	private float quantize(float value) {
+		float result = zero + Math.round((value - zero) / resolution) * resolution;
+		if (value > zero_max && result <= zero_max && result != zero)
+			result += resolution;
+		else if (value < zero_min && result >= zero_min && result != zero)
+			result -= resolution;
+		return Math.max(min, Math.min(max, result));
+	}
+}
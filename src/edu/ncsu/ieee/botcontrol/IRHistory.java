@@ -0,0 +1,193 @@
+package edu.ncsu.ieee.botcontrol;
+
+/**
+ * Fixed-capacity history of IR readings, stored in primitive columns (no boxing, no allocation once created).
+ *
+ * Each row holds a local timestamp, the server timestamp and up to width values per sensor array (e.g. front, back, left, right).
+ * When full, the oldest row is overwritten.
+ *
+ * Writers and readers share the history's lock (contention is rare: one stream and/or one poll at a time, and an occasional
+ * reader); read() only holds it while copying rows into a preallocated Snapshot, so a snapshot is always consistent and readers
+ * then work on their copy without blocking the writer. NOTE: Java 6/7 has no load fence, so a lock-free (seqlock) reader could
+ * see torn rows; a lock costs about as much as copying the rows.
+ */
+public class IRHistory {
+	/** Rows copied out of the history; reusable across read() calls. */
+	public static class Snapshot {
+		public final long[] times; ///< local time each row was added (ms, System.nanoTime() based)
+		public final double[] serverTimes; ///< server timestamp of each row, -1 if not given
+		public final float[][] values; ///< values[sensor][row * width + i]
+		public final int[][] lengths; ///< lengths[sensor][row] = no. of values, -1 if the sensor was missing from that reading
+		public int size = 0; ///< no. of valid rows, oldest first
+		
+		private Snapshot(int capacity, int sensors, int width) {
+			times = new long[capacity];
+			serverTimes = new double[capacity];
+			values = new float[sensors][capacity * width];
+			lengths = new int[sensors][capacity];
+		}
+	}
+	
+	private final String[] sensors;
+	private final int capacity;
+	private final int width;
+	
+	// Columns, indexed by (row % capacity)
+	private final long[] times;
+	private final double[] serverTimes;
+	private final float[][] values;
+	private final int[][] lengths;
+	
+	private volatile long count = 0; ///< no. of rows ever added (volatile so that size() and getCount() don't need the lock)
+	private volatile long unknownCount = 0; ///< readings (per sensor) dropped because the sensor name is not tracked
+	
+	/**
+	 * @param sensors names of sensor arrays to keep (e.g. "front", "back", "left", "right")
+	 * @param capacity max. no. of rows
+	 * @param width max. no. of values per sensor array (extra values are dropped)
+	 */
+	public IRHistory(String[] sensors, int capacity, int width) {
+		if (capacity <= 0 || width <= 0)
+			throw new IllegalArgumentException("Invalid IR history size: " + capacity + " x " + width);
+		this.sensors = sensors.clone();
+		this.capacity = capacity;
+		this.width = width;
+		times = new long[capacity];
+		serverTimes = new double[capacity];
+		values = new float[sensors.length][capacity * width];
+		lengths = new int[sensors.length][capacity];
+	}
+	
+	public String[] getSensors() {
+		return sensors.clone();
+	}
+	
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	
+	/** No. of rows currently held. */
+	public int size() {
+		return (int) Math.min(count, capacity);
+	}
+	
+	/** Total no. of rows ever added (keeps counting after the oldest ones are overwritten). */
+	public long getCount() {
+		return count;
+	}
+	
+	public long getUnknownCount() {
+		return unknownCount;
+	}
+	
+	/** Index of a tracked sensor array, or -1. */
+	public int indexOf(String sensor) {
+		for (int i = 0; i < sensors.length; i++) {
+			if (sensors[i].equals(sensor))
+				return i;
+		}
+		return -1;
+	}
+	
+	/** Append a reading as a new row (overwriting the oldest if full). */
+	public synchronized void add(IRTelemetrySource.Reading reading) {
+		long row = count;
+		int slot = (int) (row % capacity);
+		times[slot] = System.nanoTime() / 1000000L;
+		serverTimes[slot] = reading.time;
+		for (int s = 0; s < sensors.length; s++)
+			lengths[s][slot] = -1;
+		for (int r = 0; r < reading.names.length; r++) {
+			float[] readingValues = reading.values[r];
+			int s = indexOf(reading.names[r]);
+			if (s < 0 || readingValues == null) {
+				unknownCount++;
+				continue;
+			}
+			int n = Math.min(readingValues.length, width);
+			System.arraycopy(readingValues, 0, values[s], slot * width, n);
+			lengths[s][slot] = n;
+		}
+		count = row + 1; // publish
+	}
+	
+	/** Create a snapshot big enough to hold the whole history. */
+	public Snapshot newSnapshot() {
+		return new Snapshot(capacity, sensors.length, width);
+	}
+	
+	/**
+	 * Copy the most recent rows (up to the snapshot's capacity) into snapshot, oldest first. Holds the lock only while copying.
+	 * @return no. of rows copied (also in snapshot.size)
+	 */
+	public synchronized int read(Snapshot snapshot) {
+		int maxRows = Math.min(capacity, snapshot.times.length);
+		long end = count;
+		long start = Math.max(0, end - maxRows);
+		for (long row = start; row < end; row++) {
+			int slot = (int) (row % capacity);
+			int i = (int) (row - start);
+			snapshot.times[i] = times[slot];
+			snapshot.serverTimes[i] = serverTimes[slot];
+			for (int s = 0; s < sensors.length; s++) {
+				snapshot.lengths[s][i] = lengths[s][slot];
+				System.arraycopy(values[s], slot * width, snapshot.values[s], i * width, width);
+			}
+		}
+		snapshot.size = (int) (end - start);
+		return snapshot.size;
+	}
+	
+	/**
+	 * Copy the latest values of a sensor array into out (up to out.length).
+	 * @return no. of values copied, or -1 if there are none (unknown sensor, empty history, or missing from the latest row)
+	 */
+	public synchronized int latest(int sensor, float[] out) {
+		if (sensor < 0 || sensor >= sensors.length || count == 0)
+			return -1;
+		int slot = (int) ((count - 1) % capacity);
+		int n = Math.min(lengths[sensor][slot], out.length);
+		if (n > 0)
+			System.arraycopy(values[sensor], slot * width, out, 0, n);
+		return n;
+	}
+	
+	/**
+	 * Read the history into snapshot and summarize it for display: no. of rows and the time they span, then min/mean/max of each
+	 * sensor array's values over those rows.
+	 */
+	public String format(Snapshot snapshot) {
+		int rows = read(snapshot);
+		StringBuilder builder = new StringBuilder();
+		if (rows == 0)
+			return builder.append("No readings yet").toString();
+		long span = snapshot.times[rows - 1] - snapshot.times[0];
+		builder.append(rows).append(" readings over ").append(String.format("%.1f", span / 1000.0)).append(" s");
+		if (span > 0)
+			builder.append(" (").append(String.format("%.1f", (rows - 1) * 1000.0 / span)).append(" Hz)");
+		for (int s = 0; s < sensors.length; s++) {
+			float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+			double sum = 0;
+			int n = 0;
+			for (int row = 0; row < rows; row++) {
+				for (int i = 0; i < snapshot.lengths[s][row]; i++) {
+					float value = snapshot.values[s][row * width + i];
+					min = Math.min(min, value);
+					max = Math.max(max, value);
+					sum += value;
+					n++;
+				}
+			}
+			builder.append('\n').append(sensors[s]).append(": ");
+			if (n == 0)
+				builder.append("-");
+			else
+				builder.append(String.format("min %.1f, mean %.1f, max %.1f", min, sum / n, max));
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,206 @@
+package edu.ncsu.ieee.botcontrol;
+
+import java.util.Arrays;
+
+import android.util.Log;
+
+/**
+ * Source of IR sensor readings that prefers the published "ir" stream, and falls back to polling only while the stream is stale.
+ *
+ * Usage: register as the subscriber's listener for the "ir" topic, pass polled results (e.g. ir_hub.read_cached replies) to
+ * onPolledReading(), and start(). Listeners get readings from either source, on the thread that produced them.
+ */
+public class IRTelemetrySource implements ZMQSubscriberThread.OnTopicMessageListener {
+	private static final String TAG = "IRTelemetrySource";
+	private static final int CHECK_RATE = 20; // Hz; how often the stream is checked for staleness (and a poll considered)
+	
+	/** One set of IR readings (sensor name -> values), as streamed or polled. */
+	public static class Reading {
+		public final double time; ///< server timestamp, or -1 if not given
+		public final boolean fresh;
+		public final String[] names;
+		public final float[][] values; ///< values[i] belongs to names[i]; null if not an array
+		public final boolean streamed; ///< true if from the PUB stream, false if polled
+		
+		public Reading(double time, boolean fresh, String[] names, float[][] values, boolean streamed) {
+			this.time = time;
+			this.fresh = fresh;
+			this.names = names;
+			this.values = values;
+			this.streamed = streamed;
+		}
+		
+		/**
+		 * Extract readings from a JSON object: either {"time": .., "fresh": .., "readings": {name: [..], ..}},
+		 * or just {name: [..], ..} (e.g. binary/thresholded reads).
+		 * @return reading, or null if pos is invalid
+		 */
+		public static Reading parse(ReplyReader reader, int pos, boolean streamed) {
+			if (pos < 0)
+				return null;
+			double time = -1.0;
+			boolean fresh = true;
+			int readingsPos = reader.field(pos, "readings");
+			if (readingsPos >= 0) {
+				time = reader.readDouble(reader.field(pos, "time"), -1.0);
+				fresh = reader.readBoolean(reader.field(pos, "fresh"), false);
+			}
+			else {
+				readingsPos = pos;
+			}
+			
+			int numReadings = 0;
+			for (int member = reader.firstMember(readingsPos); member >= 0; member = reader.nextMember(member))
+				numReadings++;
+			String[] names = new String[numReadings];
+			float[][] values = new float[numReadings][];
+			int i = 0;
+			for (int member = reader.firstMember(readingsPos); member >= 0; member = reader.nextMember(member), i++) {
+				names[i] = reader.memberName(member);
+				values[i] = reader.readFloatArray(reader.memberValue(member));
+			}
+			return new Reading(time, fresh, names, values, streamed);
+		}
+		
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append("[IR] time: ").append(time).append(", fresh: ").append(fresh).append(", len(readings): ").append(values.length);
+			builder.append(streamed ? " (stream)" : " (poll)");
+			for (int i = 0; i < names.length; i++) {
+				if (values[i] != null) // skip anything that isn't an array
+					builder.append("\n[IR] ").append(names[i]).append(": ").append(Arrays.toString(values[i]));
+			}
+			return builder.toString();
+		}
+	}
+	
+	public interface OnIRReadingListener {
+		public void onIRReading(Reading reading);
+	}
+	
+	/** Issues one (asynchronous) poll request; results are expected back via onPolledReading(). */
+	public interface Poller {
+		public void poll();
+	}
+	
+	private final Poller poller;
+	private volatile long pollInterval; // ms; time between polls while stream is stale
+	private final long staleTimeout; // ms; stream is considered stale if nothing arrived for this long
+	private long lastPollTime = 0; // ms; only used on watchdog thread
+	private volatile OnIRReadingListener listener = null;
+	private ControlLoop watchdog = null;
+	
+	private final ReplyReader streamReader = new ReplyReader(); // only used on subscriber thread
+	private volatile boolean streamSeen = false;
+	private volatile long lastStreamTime = 0; // ms (System.nanoTime() based)
+	private volatile boolean polling = true; // start out polling till the stream shows up
+	private volatile long streamedCount = 0;
+	private volatile long polledCount = 0;
+	private volatile long invalidCount = 0;
+	
+	public IRTelemetrySource(Poller poller, long pollInterval, long staleTimeout) {
+		if (pollInterval <= 0)
+			throw new IllegalArgumentException("Poll interval must be positive: " + pollInterval);
+		this.poller = poller;
+		this.pollInterval = pollInterval;
+		this.staleTimeout = staleTimeout;
+	}
+	
+	/** Change time between polls (e.g. from within Poller.poll(), to adapt to conditions); takes effect after the next poll. */
+	public void setPollInterval(long pollInterval) {
+		if (pollInterval <= 0)
+			throw new IllegalArgumentException("Poll interval must be positive: " + pollInterval);
+		this.pollInterval = pollInterval;
+	}
+	
+	public long getPollInterval() {
+		return pollInterval;
+	}
+	
+	public void setListener(OnIRReadingListener listener) {
+		this.listener = listener;
+	}
+	
+	/** Start watching the stream (and polling while it is stale). */
+	public synchronized void start() {
+		if (watchdog != null)
+			return;
+		watchdog = new ControlLoop(CHECK_RATE, new ControlLoop.OnTickListener() {
+			@Override
+			public void onTick() {
+				check();
+			}
+		});
+		watchdog.start();
+	}
+	
+	public synchronized void stop() {
+		if (watchdog != null) {
+			watchdog.stop();
+			watchdog = null;
+		}
+	}
+	
+	/** True if currently falling back to polling (stream stale or not seen yet). */
+	public boolean isPolling() {
+		return polling;
+	}
+	
+	public long getStreamedCount() {
+		return streamedCount;
+	}
+	
+	public long getPolledCount() {
+		return polledCount;
+	}
+	
+	public long getInvalidCount() {
+		return invalidCount;
+	}
+	
+	private void check() {
+		long now = now();
+		boolean stale = (!streamSeen || now - lastStreamTime > staleTimeout);
+		if (stale != polling) {
+			polling = stale;
+			Log.i(TAG, "check(): IR stream " + (stale ? "stale; falling back to polling" : "live; stopped polling"));
+		}
+		if (stale && poller != null && now - lastPollTime >= pollInterval) {
+			lastPollTime = now;
+			poller.poll();
+		}
+	}
+	
+	@Override
+	public void onTopicMessage(String topic, byte[] payload, int offset, int length) {
+		ReplyReader reader = streamReader.reset(payload, offset, length); // read in place, no String per message
+		Reading reading = Reading.parse(reader, reader.root(), true);
+		if (reading == null) {
+			invalidCount++;
+			return;
+		}
+		lastStreamTime = now();
+		streamSeen = true;
+		streamedCount++;
+		deliver(reading);
+	}
+	
+	/** Deliver a reading obtained by polling. Ignored if the stream came back in the meantime. */
+	public void onPolledReading(Reading reading) {
+		if (!polling)
+			return;
+		polledCount++;
+		deliver(reading);
+	}
+	
+	private void deliver(Reading reading) {
+		OnIRReadingListener listener = this.listener;
+		if (listener != null)
+			listener.onIRReading(reading);
+	}
+	
+	private static long now() {
+		return System.nanoTime() / 1000000L;
+	}
+}
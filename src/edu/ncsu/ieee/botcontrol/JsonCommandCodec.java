@@ -0,0 +1,215 @@
+package edu.ncsu.ieee.botcontrol;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Default codec: commands are sent as JSON text, understood by any server.
+ * 
+ * Batches: {"type":"batch_req","calls":[call_req, ...]}, answered by {"type":"batch_reply","replies":[call_reply, ...]} (same order).
+ */
+public class JsonCommandCodec implements CommandCodec {
+	public static final String NAME = "json";
+	
+	private static final byte[] CALL_REQ_TYPE = "\"type\":\"call_req\"".getBytes(); // as rendered by JSONObject.toString() and templates
+	private static final byte[] BATCH_REQ_HEAD = "{\"type\":\"batch_req\",\"calls\":[".getBytes();
+	private static final byte[] BATCH_REQ_TAIL = "]}".getBytes();
+	
+	@Override
+	public String getName() {
+		return NAME;
+	}
+	
+	@Override
+	public byte[] encode(JSONObject cmdObj) {
+		if (cmdObj == null)
+			return null;
+		return cmdObj.toString().getBytes();
+	}
+	
+	@Override
+	public CommandTemplate compile(JSONObject cmdObj, String[] slotParams) {
+		JSONObject paramsObj = cmdObj.optJSONObject("params");
+		if (paramsObj == null)
+			return new CommandTemplate.Encoding(this, cmdObj, slotParams);
+		for (String param : slotParams) {
+			if (!(paramsObj.opt(param) instanceof Number))
+				return new CommandTemplate.Encoding(this, cmdObj, slotParams);
+		}
+		
+		// Render JSON text by hand, leaving fixed-width numeric slots to be patched in place
+		StringBuilder text = new StringBuilder();
+		int[] slotEnds = new int[slotParams.length];
+		int[] slotFractionDigits = new int[slotParams.length];
+		text.append('{');
+		Iterator<?> keys = cmdObj.keys();
+		while (keys.hasNext()) {
+			String key = (String) keys.next();
+			text.append(JSONObject.quote(key)).append(':');
+			if (!key.equals("params")) {
+				appendValue(text, cmdObj.opt(key));
+			}
+			else {
+				text.append('{');
+				Iterator<?> params = paramsObj.keys();
+				while (params.hasNext()) {
+					String param = (String) params.next();
+					text.append(JSONObject.quote(param)).append(':');
+					int slot = indexOf(slotParams, param);
+					if (slot < 0) {
+						appendValue(text, paramsObj.opt(param));
+					}
+					else {
+						for (int i = 0; i < Template.SLOT_WIDTH; i++)
+							text.append(' '); // JSON allows whitespace before a value, patch() right-aligns numbers in here
+						slotEnds[slot] = text.length();
+						Object value = paramsObj.opt(param);
+						slotFractionDigits[slot] = (value instanceof Integer || value instanceof Long ? 0 : Template.FRACTION_DIGITS);
+					}
+					if (params.hasNext())
+						text.append(',');
+				}
+				text.append('}');
+			}
+			if (keys.hasNext())
+				text.append(',');
+		}
+		text.append('}');
+		
+		// NOTE Byte offsets equal char offsets as long as everything before the last slot is ASCII
+		byte[] frame = text.toString().getBytes();
+		if (frame.length != text.length())
+			return new CommandTemplate.Encoding(this, cmdObj, slotParams);
+		Template template = new Template(frame, slotEnds, slotFractionDigits);
+		for (int slot = 0; slot < slotParams.length; slot++)
+			template.set(slot, (float) paramsObj.optDouble(slotParams[slot], 0.0));
+		return template;
+	}
+	
+	@Override
+	public boolean isBatchable(byte[] request) {
+		return isJsonCallReq(request);
+	}
+	
+	@Override
+	public byte[] encodeBatch(List<byte[]> requests) {
+		// Splice already encoded calls into the batch without re-parsing them
+		int size = BATCH_REQ_HEAD.length + BATCH_REQ_TAIL.length + requests.size() - 1;
+		for (byte[] request : requests)
+			size += request.length;
+		byte[] batch = new byte[size];
+		int pos = 0;
+		System.arraycopy(BATCH_REQ_HEAD, 0, batch, pos, BATCH_REQ_HEAD.length);
+		pos += BATCH_REQ_HEAD.length;
+		for (int i = 0; i < requests.size(); i++) {
+			if (i > 0)
+				batch[pos++] = ',';
+			byte[] request = requests.get(i);
+			System.arraycopy(request, 0, batch, pos, request.length);
+			pos += request.length;
+		}
+		System.arraycopy(BATCH_REQ_TAIL, 0, batch, pos, BATCH_REQ_TAIL.length);
+		return batch;
+	}
+	
+	@Override
+	public List<String> decodeBatchReply(String reply) {
+		return splitBatchReply(reply);
+	}
+	
+	/** Split a JSON batch_reply into individual replies; returns null if it isn't one. Shared by all codecs (replies are always JSON). */
+	public static List<String> splitBatchReply(String reply) {
+		ReplyReader reader = new ReplyReader(reply);
+		if (!reader.isType("batch_reply"))
+			return null;
+		int repliesPos = reader.field(reader.root(), "replies");
+		if (reader.arrayLength(repliesPos) < 0)
+			return null;
+		List<String> replies = new ArrayList<String>();
+		for (int element = reader.firstElement(repliesPos); element >= 0; element = reader.nextElement(element))
+			replies.add(reader.rawValue(element));
+		return replies;
+	}
+	
+	/** Check if given frame is a JSON call_req. */
+	static boolean isJsonCallReq(byte[] request) {
+		if (request.length == 0 || request[0] != '{')
+			return false;
+		outer:
+		for (int i = 0; i <= request.length - CALL_REQ_TYPE.length; i++) {
+			for (int j = 0; j < CALL_REQ_TYPE.length; j++) {
+				if (request[i + j] != CALL_REQ_TYPE[j])
+					continue outer;
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	private static void appendValue(StringBuilder text, Object value) {
+		if (value instanceof String)
+			text.append(JSONObject.quote((String) value));
+		else if (value instanceof JSONObject || value instanceof JSONArray || value instanceof Number || value instanceof Boolean)
+			text.append(value.toString());
+		else
+			text.append("null");
+	}
+	
+	private static int indexOf(String[] names, String name) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name))
+				return i;
+		}
+		return -1;
+	}
+	
+	/** JSON text with fixed-width, space-padded numeric slots. */
+	static class Template extends CommandTemplate {
+		static final int SLOT_WIDTH = 12;      // fits values up to "-9999999.999": sign, 7 integer digits, point, 3 fraction digits
+		static final int FRACTION_DIGITS = 3;  // plenty for speeds and angles
+		private static final long MAX_SCALED = 9999999999L; // largest value (scaled by fraction digits) that still fits in a slot
+		
+		private final int[] slotEnds;
+		private final int[] slotFractionDigits;
+		
+		Template(byte[] frame, int[] slotEnds, int[] slotFractionDigits) {
+			super(frame);
+			this.slotEnds = slotEnds;
+			this.slotFractionDigits = slotFractionDigits;
+		}
+		
+		@Override
+		protected void patch(int slot, float value) {
+			int fractionDigits = slotFractionDigits[slot];
+			if (Float.isNaN(value) || Float.isInfinite(value))
+				value = 0.f; // not representable in JSON
+			boolean negative = (value < 0.f);
+			long scaled = Math.round(Math.abs((double) value) * (fractionDigits == 0 ? 1 : 1000)); // NOTE: 1000 = 10^FRACTION_DIGITS
+			if (scaled > MAX_SCALED)
+				scaled = MAX_SCALED; // clamp instead of overflowing the slot
+			if (scaled == 0)
+				negative = false; // no "-0"
+			
+			// Write digits right to left, then the sign, then pad with spaces
+			int pos = slotEnds[slot] - 1, start = slotEnds[slot] - SLOT_WIDTH;
+			for (int i = 0; i < fractionDigits; i++) {
+				frame[pos--] = (byte) ('0' + (scaled % 10));
+				scaled /= 10;
+			}
+			if (fractionDigits > 0)
+				frame[pos--] = '.';
+			do {
+				frame[pos--] = (byte) ('0' + (scaled % 10));
+				scaled /= 10;
+			} while (scaled > 0);
+			if (negative)
+				frame[pos--] = '-';
+			while (pos >= start)
+				frame[pos--] = ' ';
+		}
+	}
+}
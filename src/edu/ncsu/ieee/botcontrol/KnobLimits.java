@@ -0,0 +1,43 @@
+package edu.ncsu.ieee.botcontrol;
+
+/**
+ * Knob position limits of a TouchJoystick, kept free of view state (so that it can be tested and benchmarked on a plain JVM).
+ */
+public class KnobLimits {
+	// Shape constants (NOTE these need to match values defined in attrs_touch_joystick.xml)
+	public static final int SHAPE_CIRCLE = 0;
+	public static final int SHAPE_SQUARE = 1;
+	
+	/** Clamp normalized knob position (x, y) to shape-dependent limits; result is written to knob[0], knob[1]. */
+	public static void clamp(int shape, float x, float y, float[] knob) {
+		float knobXNorm = x;
+		float knobYNorm = y;
+		switch(shape) {
+		case SHAPE_CIRCLE:
+			double knobRNorm = Math.hypot(knobXNorm, knobYNorm);
+			if (knobRNorm > 1.0) {
+				/*
+				// Method 1: Compute angle, then project to unit radius
+				double knobTheta = Math.atan2(knobYNorm, knobXNorm);
+				knobXNorm = (float) Math.cos(knobTheta);
+				knobYNorm = (float) Math.sin(knobTheta);
+				*/
+				
+				// Method 2: Normalize x, y by actual radius (more efficient?)
+				knobXNorm /= (float) knobRNorm;
+				knobYNorm /= (float) knobRNorm;
+			}
+			break;
+		
+		case SHAPE_SQUARE:
+			// NOTE The square shape can actually be asymmetric (i.e. a rectangle) since X and Y are clamped independently
+			if (Math.abs(knobXNorm) > 1.f)
+				knobXNorm = Math.copySign(1.f, knobXNorm);
+			if (Math.abs(knobYNorm) > 1.f)
+				knobYNorm = Math.copySign(1.f, knobYNorm);
+			break;
+		}
+		knob[0] = knobXNorm;
+		knob[1] = knobYNorm;
+	}
+}
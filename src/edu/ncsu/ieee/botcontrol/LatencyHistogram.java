@@ -0,0 +1,103 @@
+package edu.ncsu.ieee.botcontrol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory histogram of durations, with log-linear buckets (16 per power of 2, i.e. ~6% resolution) over microseconds.
+ *
+ * Recording is lock-free and allocation-free, so it can be called from any thread on hot paths.
+ * Percentiles are approximate (bucket upper bound); max is exact.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int MAX_BITS = 40; // ~12.7 days in us; anything longer goes in the last bucket
+	private static final int NUM_BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong(); // ns
+	private final AtomicLong max = new AtomicLong(); // ns
+
+	/** Record a duration, in ns (e.g. a difference of System.nanoTime() values). */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(bucketOf(nanos / 1000));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long currentMax;
+		while (nanos > (currentMax = max.get())) {
+			if (max.compareAndSet(currentMax, nanos))
+				break;
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/** Longest duration recorded, in ns. */
+	public long getMax() {
+		return max.get();
+	}
+
+	/** Mean duration, in ns (0 if empty). */
+	public long getMean() {
+		long n = count.get();
+		return (n > 0 ? total.get() / n : 0);
+	}
+
+	/** Approximate duration (ns) below which given fraction (0..1) of recorded durations fall; 0 if empty. */
+	public long getPercentile(double fraction) {
+		long n = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++)
+			n += counts.get(i);
+		if (n == 0)
+			return 0;
+		long rank = (long) Math.ceil(fraction * n);
+		if (rank < 1)
+			rank = 1;
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(upperBoundOf(i) * 1000, max.get());
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < NUM_BUCKETS; i++)
+			counts.set(i, 0);
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+	/** One-line summary in ms: count, p50, p95, p99, max. */
+	@Override
+	public String toString() {
+		return String.format("n=%d p50=%.1f p95=%.1f p99=%.1f max=%.1f ms",
+			getCount(), getPercentile(0.50) / 1e6, getPercentile(0.95) / 1e6, getPercentile(0.99) / 1e6, getMax() / 1e6);
+	}
+
+	private static int bucketOf(long micros) {
+		if (micros < SUB_BUCKETS)
+			return (int) micros;
+		int msb = 63 - Long.numberOfLeadingZeros(micros);
+		if (msb >= MAX_BITS)
+			return NUM_BUCKETS - 1;
+		int shift = msb - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((micros >> shift) & (SUB_BUCKETS - 1));
+	}
+
+	private static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int shift = bucket / SUB_BUCKETS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+}
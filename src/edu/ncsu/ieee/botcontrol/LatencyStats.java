@@ -0,0 +1,84 @@
+package edu.ncsu.ieee.botcontrol;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.util.Log;
+
+/**
+ * Latency histograms per command (label, e.g. "obj_name.method"), split into the stages a command goes through:
+ * - queue: from being issued to being sent (time spent in the client's request queue, incl. batching window)
+ * - rtt: from being sent to its reply being received (wire + server time)
+ * - callback: time taken by the reply callback
+ * Commands discarded for being past their deadline (see ZMQClientThread.setTimeToLive()) are counted separately, with their age.
+ */
+public class LatencyStats {
+	private static final String TAG = "LatencyStats";
+	public static final String UNLABELED = "(other)";
+
+	/** Histograms of one command. */
+	public static class Entry {
+		public final LatencyHistogram queue = new LatencyHistogram();
+		public final LatencyHistogram rtt = new LatencyHistogram();
+		public final LatencyHistogram callback = new LatencyHistogram();
+		public final LatencyHistogram expired = new LatencyHistogram(); ///< age when discarded
+	}
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/** Histograms for given label (created on first use). */
+	public Entry get(String label) {
+		if (label == null)
+			label = UNLABELED;
+		Entry entry = entries.get(label);
+		if (entry == null) {
+			Entry newEntry = new Entry();
+			entry = entries.putIfAbsent(label, newEntry);
+			if (entry == null)
+				entry = newEntry;
+		}
+		return entry;
+	}
+
+	public void recordQueue(String label, long nanos) {
+		get(label).queue.record(nanos);
+	}
+
+	public void recordRtt(String label, long nanos) {
+		get(label).rtt.record(nanos);
+	}
+
+	public void recordCallback(String label, long nanos) {
+		get(label).callback.record(nanos);
+	}
+
+	public void recordExpired(String label, long nanos) {
+		get(label).expired.record(nanos);
+	}
+
+	public void reset() {
+		entries.clear();
+	}
+
+	/** Multi-line summary of all commands (sorted by label). */
+	public String format() {
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<String, Entry> mapEntry : new TreeMap<String, Entry>(entries).entrySet()) {
+			Entry entry = mapEntry.getValue();
+			builder.append(mapEntry.getKey()).append('\n');
+			builder.append("  queue:    ").append(entry.queue).append('\n');
+			builder.append("  rtt:      ").append(entry.rtt).append('\n');
+			builder.append("  callback: ").append(entry.callback).append('\n');
+			if (entry.expired.getCount() > 0)
+				builder.append("  expired:  ").append(entry.expired).append('\n');
+		}
+		return (builder.length() > 0 ? builder.toString() : "No commands recorded\n");
+	}
+
+	/** Write summary to log, one line per command and stage. */
+	public void dump() {
+		for (String line : format().split("\n"))
+			Log.i(TAG, "dump(): " + line);
+	}
+}
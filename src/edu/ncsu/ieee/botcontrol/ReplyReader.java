@@ -0,0 +1,369 @@
+package edu.ncsu.ieee.botcontrol;
+
+import java.nio.charset.Charset;
+
+/**
+ * Lazy, allocation-light reader for JSON replies (call_reply, ping_reply etc.).
+ * 
+ * Instead of building a JSONObject tree, it scans the reply text on demand: look up a field to get the position of its value,
+ * then read that value as a number, boolean or primitive array, or compare it against an expected string. Values that are not
+ * asked for are skipped without being parsed. Positions are plain indices into the text; -1 means "not found/invalid".
+ * 
+ * Example: <pre>
+ *   ReplyReader reader = new ReplyReader(reply);
+ *   if (reader.isType("call_reply")) {
+ *     int ret = reader.field(reader.root(), "call_return");
+ *     double time = reader.readDouble(reader.field(ret, "time"), -1.0);
+ *   }
+ * </pre>
+ * Replies can also be read straight from received bytes (ASCII, e.g. JSON published on a topic), without decoding them into a String.
+ * NOTE: Not thread-safe; use one reader per thread (reset() lets a thread reuse its reader).
+ */
+public class ReplyReader {
+	/** ASCII bytes viewed as characters, so that a message can be read in place. */
+	private static final class ByteText implements CharSequence {
+		private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+		
+		private byte[] bytes;
+		private int offset;
+		private int length;
+		
+		ByteText reset(byte[] bytes, int offset, int length) {
+			this.bytes = bytes;
+			this.offset = offset;
+			this.length = length;
+			return this;
+		}
+		
+		@Override
+		public int length() {
+			return length;
+		}
+		
+		@Override
+		public char charAt(int index) {
+			return (char) (bytes[offset + index] & 0xff);
+		}
+		
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new String(bytes, offset + start, end - start, LATIN_1); // same byte -> char mapping as charAt()
+		}
+		
+		@Override
+		public String toString() {
+			return subSequence(0, length).toString();
+		}
+	}
+	
+	private CharSequence text = "";
+	private int length = 0;
+	private ByteText byteText = null; // reused by reset(byte[], int, int)
+	
+	public ReplyReader() {
+	}
+	
+	public ReplyReader(String text) {
+		reset(text);
+	}
+	
+	/** Point this reader at a new reply. */
+	public ReplyReader reset(String text) {
+		this.text = (text != null ? text : "");
+		this.length = this.text.length();
+		return this;
+	}
+	
+	/** Point this reader at a reply held in given bytes (ASCII), without copying them. NOTE: The bytes must not change while being read. */
+	public ReplyReader reset(byte[] bytes, int offset, int length) {
+		if (byteText == null)
+			byteText = new ByteText();
+		this.text = byteText.reset(bytes, offset, length);
+		this.length = length;
+		return this;
+	}
+	
+	/** Position of the top-level object, or -1 if the reply isn't an object. */
+	public int root() {
+		int pos = skipWhitespace(0);
+		return (pos < length && text.charAt(pos) == '{' ? pos : -1);
+	}
+	
+	/** Check if the top-level "type" field equals given type. */
+	public boolean isType(String type) {
+		return stringEquals(field(root(), "type"), type);
+	}
+	
+	/** Position of the value of given field of the object at objPos, or -1 if there is no such field. */
+	public int field(int objPos, String key) {
+		for (int member = firstMember(objPos); member >= 0; member = nextMember(member)) {
+			if (stringEquals(member, key))
+				return memberValue(member);
+		}
+		return -1;
+	}
+	
+	/** Position of the first member (its name) of the object at objPos, or -1 if empty/invalid. */
+	public int firstMember(int objPos) {
+		if (objPos < 0 || objPos >= length || text.charAt(objPos) != '{')
+			return -1;
+		int pos = skipWhitespace(objPos + 1);
+		return (pos < length && text.charAt(pos) == '"' ? pos : -1);
+	}
+	
+	/** Position of the member following the one at memberPos, or -1 if it was the last. */
+	public int nextMember(int memberPos) {
+		int pos = skip(memberValue(memberPos));
+		if (pos < 0)
+			return -1;
+		pos = skipWhitespace(pos);
+		if (pos >= length || text.charAt(pos) != ',')
+			return -1;
+		pos = skipWhitespace(pos + 1);
+		return (pos < length && text.charAt(pos) == '"' ? pos : -1);
+	}
+	
+	/** Name of the member at memberPos (allocates a String; prefer stringEquals() to test names). */
+	public String memberName(int memberPos) {
+		return readString(memberPos);
+	}
+	
+	/** Position of the value of the member at memberPos. */
+	public int memberValue(int memberPos) {
+		int pos = skip(memberPos);
+		if (pos < 0)
+			return -1;
+		pos = skipWhitespace(pos);
+		if (pos >= length || text.charAt(pos) != ':')
+			return -1;
+		pos = skipWhitespace(pos + 1);
+		return (pos < length ? pos : -1);
+	}
+	
+	/** Check if the string value at pos equals expected, without allocating. */
+	public boolean stringEquals(int pos, String expected) {
+		if (pos < 0 || pos >= length || text.charAt(pos) != '"')
+			return false;
+		int n = expected.length();
+		if (pos + n + 1 >= length || text.charAt(pos + n + 1) != '"')
+			return false;
+		return regionMatches(pos + 1, expected); // NOTE: Escaped strings never match, which is fine for names and types
+	}
+	
+	/** String value at pos (unescaped), or null if it isn't a string. */
+	public String readString(int pos) {
+		if (pos < 0 || pos >= length || text.charAt(pos) != '"')
+			return null;
+		int end = skip(pos);
+		if (end < 0)
+			return null;
+		String raw = text.subSequence(pos + 1, end - 1).toString();
+		if (raw.indexOf('\\') < 0)
+			return raw;
+		StringBuilder unescaped = new StringBuilder(raw.length());
+		for (int i = 0; i < raw.length(); i++) {
+			char c = raw.charAt(i);
+			if (c != '\\' || i + 1 >= raw.length()) {
+				unescaped.append(c);
+				continue;
+			}
+			c = raw.charAt(++i);
+			switch (c) {
+			case 'n': unescaped.append('\n'); break;
+			case 't': unescaped.append('\t'); break;
+			case 'r': unescaped.append('\r'); break;
+			case 'b': unescaped.append('\b'); break;
+			case 'f': unescaped.append('\f'); break;
+			case 'u':
+				if (i + 4 < raw.length()) {
+					unescaped.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+					i += 4;
+				}
+				break;
+			default: unescaped.append(c); break; // \" \\ \/
+			}
+		}
+		return unescaped.toString();
+	}
+	
+	/** Numeric value at pos, or defaultValue if it isn't a number. */
+	public double readDouble(int pos, double defaultValue) {
+		if (pos < 0 || pos >= length)
+			return defaultValue;
+		int i = pos;
+		boolean negative = false;
+		if (text.charAt(i) == '-') {
+			negative = true;
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0, exponent = 0;
+		boolean any = false;
+		for (; i < length && isDigit(text.charAt(i)); i++, any = true) {
+			if (digits < 18) {
+				mantissa = mantissa * 10 + (text.charAt(i) - '0');
+				if (mantissa != 0)
+					digits++;
+			}
+			else {
+				exponent++; // drop digits beyond long precision
+			}
+		}
+		if (i < length && text.charAt(i) == '.') {
+			for (i++; i < length && isDigit(text.charAt(i)); i++, any = true) {
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (text.charAt(i) - '0');
+					if (mantissa != 0)
+						digits++;
+					exponent--;
+				}
+			}
+		}
+		if (!any)
+			return defaultValue;
+		if (i < length && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+			i++;
+			boolean negativeExp = false;
+			if (i < length && (text.charAt(i) == '-' || text.charAt(i) == '+'))
+				negativeExp = (text.charAt(i++) == '-');
+			int exp = 0;
+			for (; i < length && isDigit(text.charAt(i)); i++)
+				exp = Math.min(exp * 10 + (text.charAt(i) - '0'), 1000);
+			exponent += (negativeExp ? -exp : exp);
+		}
+		double value = (exponent == 0 ? mantissa : (exponent > 0 ? mantissa * Math.pow(10, exponent) : mantissa / Math.pow(10, -exponent)));
+		return (negative ? -value : value);
+	}
+	
+	/** Boolean value at pos, or defaultValue if it isn't a boolean. */
+	public boolean readBoolean(int pos, boolean defaultValue) {
+		if (pos < 0)
+			return defaultValue;
+		if (regionMatches(pos, "true"))
+			return true;
+		if (regionMatches(pos, "false"))
+			return false;
+		return defaultValue;
+	}
+	
+	/** No. of elements in the array at pos, or -1 if it isn't an array. */
+	public int arrayLength(int pos) {
+		if (pos < 0 || pos >= length || text.charAt(pos) != '[')
+			return -1;
+		int count = 0;
+		for (int element = firstElement(pos); element >= 0; element = nextElement(element))
+			count++;
+		return count;
+	}
+	
+	/** Read numbers from the array at pos into out (up to out.length); returns no. of elements read, or -1 if it isn't an array. */
+	public int readFloatArray(int pos, float[] out) {
+		if (pos < 0 || pos >= length || text.charAt(pos) != '[')
+			return -1;
+		int count = 0;
+		for (int element = firstElement(pos); element >= 0 && count < out.length; element = nextElement(element))
+			out[count++] = (float) readDouble(element, Double.NaN);
+		return count;
+	}
+	
+	/** Read numbers from the array at pos into a new array, or null if it isn't an array. */
+	public float[] readFloatArray(int pos) {
+		int count = arrayLength(pos);
+		if (count < 0)
+			return null;
+		float[] values = new float[count];
+		readFloatArray(pos, values);
+		return values;
+	}
+	
+	/** Position of the first element of the array at arrayPos, or -1 if empty/invalid. */
+	public int firstElement(int arrayPos) {
+		if (arrayPos < 0 || arrayPos >= length || text.charAt(arrayPos) != '[')
+			return -1;
+		int pos = skipWhitespace(arrayPos + 1);
+		return (pos < length && text.charAt(pos) != ']' ? pos : -1);
+	}
+	
+	/** Position of the element following the one at elementPos, or -1 if it was the last. */
+	public int nextElement(int elementPos) {
+		int pos = skip(elementPos);
+		if (pos < 0)
+			return -1;
+		pos = skipWhitespace(pos);
+		if (pos >= length || text.charAt(pos) != ',')
+			return -1;
+		pos = skipWhitespace(pos + 1);
+		return (pos < length ? pos : -1);
+	}
+	
+	/** Raw JSON text of the value at pos (allocates), or null if invalid. */
+	public String rawValue(int pos) {
+		int end = skip(pos);
+		return (end < 0 ? null : text.subSequence(pos, end).toString());
+	}
+	
+	/** Position just past the value starting at pos, or -1 if it is malformed. */
+	public int skip(int pos) {
+		if (pos < 0 || pos >= length)
+			return -1;
+		char c = text.charAt(pos);
+		if (c == '"') {
+			for (int i = pos + 1; i < length; i++) {
+				c = text.charAt(i);
+				if (c == '\\')
+					i++;
+				else if (c == '"')
+					return i + 1;
+			}
+			return -1;
+		}
+		if (c == '{' || c == '[') {
+			// Skip nested structure, stepping over strings (which may contain brackets)
+			int depth = 0;
+			for (int i = pos; i < length; i++) {
+				c = text.charAt(i);
+				if (c == '"') {
+					i = skip(i);
+					if (i < 0)
+						return -1;
+					i--;
+				}
+				else if (c == '{' || c == '[') {
+					depth++;
+				}
+				else if (c == '}' || c == ']') {
+					if (--depth == 0)
+						return i + 1;
+				}
+			}
+			return -1;
+		}
+		// Number or literal (true, false, null)
+		int i = pos;
+		while (i < length && "{}[],: \t\r\n".indexOf(text.charAt(i)) < 0)
+			i++;
+		return (i > pos ? i : -1);
+	}
+	
+	/** Check if the text at pos starts with expected. */
+	private boolean regionMatches(int pos, String expected) {
+		int n = expected.length();
+		if (pos < 0 || pos + n > length)
+			return false;
+		for (int i = 0; i < n; i++) {
+			if (text.charAt(pos + i) != expected.charAt(i))
+				return false;
+		}
+		return true;
+	}
+	
+	private int skipWhitespace(int pos) {
+		while (pos < length && Character.isWhitespace(text.charAt(pos)))
+			pos++;
+		return pos;
+	}
+	
+	private static boolean isDigit(char c) {
+		return (c >= '0' && c <= '9');
+	}
+}
@@ -0,0 +1,323 @@
+package edu.ncsu.ieee.botcontrol;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.ncsu.ieee.botcontrol.ZMQClientThread.RequestReplyBundle;
+
+/**
+ * Bounded request queue used by ZMQClientThread, with priority lanes and optional per-channel conflation.
+ * 
+ * Each request goes into the lane of its priority class (RequestReplyBundle.priority); lanes are serviced in priority order, and
+ * requests within a lane in FIFO order. So that a busy lane (e.g. control traffic saturating the link) can't starve the ones below
+ * it, a waiting lower-priority request is passed over at most MAX_BYPASS times in a row; then the oldest waiting request goes first.
+ * Emergency requests always go first. An emergency request without a channel (e.g. E-stop) also flushes all lower-priority requests
+ * still pending: they are cancelled, so that nothing queued before the stop is sent after it. One on a channel (e.g. neutral drive
+ * on release) only replaces the request pending on its channel, moving the channel's position up to the emergency lane.
+ * 
+ * Requests offered on a channel (e.g. "driver.move_forward_strafe") occupy at most one queue position per channel: a newer request
+ * replaces the pending one in place, so the freshest value is sent when that position comes up. The replaced bundle is not dropped;
+ * it completes with the reply to the request that replaced it. NOTE: The position stays in the lane of the first request (unless
+ * an emergency request replaces it, see above).
+ */
+public class RequestQueue {
+	public static final int PRIORITY_EMERGENCY = 0; ///< E-stop, neutral drive on release: sent next (an E-stop flushes everything below)
+	public static final int PRIORITY_CONTROL = 1; ///< Drive, turret and gun commands (default)
+	public static final int PRIORITY_TELEMETRY = 2; ///< Sensor reads
+	public static final int PRIORITY_ADMIN = 3; ///< Pings, capability negotiation, server control
+	public static final int NUM_PRIORITIES = 4;
+	public static final int MAX_BYPASS = 4; // no. of times in a row lower-priority requests may be passed over (except by emergencies)
+	
+	private final int capacity;
+	private final List<ArrayDeque<RequestReplyBundle>> lanes; // index: priority
+	private int size = 0; // total no. of positions in all lanes
+	private int flushedCount = 0;
+	private int bypassCount = 0; // no. of requests taken in a row while a lower-priority lane was waiting
+	private final Map<String, RequestReplyBundle> latest = new HashMap<String, RequestReplyBundle>(); // channel -> freshest pending bundle
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	
+	public RequestQueue(int capacity) {
+		this.capacity = capacity;
+		lanes = new ArrayList<ArrayDeque<RequestReplyBundle>>(NUM_PRIORITIES);
+		for (int i = 0; i < NUM_PRIORITIES; i++)
+			lanes.add(new ArrayDeque<RequestReplyBundle>());
+	}
+	
+	/** Append a request to its lane (flushing lower lanes if it is an emergency). Returns false if the queue is full. */
+	public boolean offer(RequestReplyBundle bundle) {
+		List<RequestReplyBundle> flushed = null;
+		lock.lock();
+		try {
+			if (bundle.priority == PRIORITY_EMERGENCY)
+				flushed = flushBelow(PRIORITY_EMERGENCY);
+			if (size >= capacity)
+				return false;
+			lane(bundle).addLast(bundle);
+			size++;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+			cancelAll(flushed);
+		}
+		return true;
+	}
+	
+	/**
+	 * Queue a request on its channel, replacing any older request still pending on the same channel. Returns false if the queue is full.
+	 * NOTE: An emergency request on a channel doesn't flush other requests, it only jumps the queue with its channel.
+	 */
+	public boolean offerLatest(RequestReplyBundle bundle) {
+		RequestReplyBundle superseded;
+		lock.lock();
+		try {
+			superseded = latest.get(bundle.channel);
+			if (superseded != null && bundle.priority == PRIORITY_EMERGENCY && removePosition(bundle.channel)) {
+				// Channel pending in a lower lane: move its position up (the pending request is still replaced, see below)
+				lane(bundle).addLast(bundle);
+				size++;
+			}
+			else if (superseded == null) {
+				// Channel not pending: take a new queue position
+				if (size >= capacity)
+					return false;
+				lane(bundle).addLast(bundle);
+				size++;
+				notEmpty.signal();
+			}
+			latest.put(bundle.channel, bundle);
+		} finally {
+			lock.unlock();
+		}
+		if (superseded != null)
+			superseded.chainTo(bundle); // outside lock, may complete immediately
+		return true;
+	}
+	
+	/**
+	 * Resolve given request (e.g. one whose reply timed out) with the outcome of the newer request pending on its channel, instead of
+	 * resending it: a stale value must not go out ahead of a fresh one. Returns false if nothing is pending on its channel.
+	 */
+	public boolean supersede(RequestReplyBundle bundle) {
+		if (bundle.channel == null)
+			return false;
+		RequestReplyBundle successor;
+		lock.lock();
+		try {
+			successor = latest.get(bundle.channel);
+		} finally {
+			lock.unlock();
+		}
+		if (successor == null || successor == bundle)
+			return false;
+		bundle.chainTo(successor); // outside lock, may complete immediately
+		return true;
+	}
+	
+	/** Remove and return the next request to send, waiting if necessary. Never returns a bundle that is already done. */
+	public RequestReplyBundle take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			RequestReplyBundle next;
+			while ((next = next()) == null)
+				notEmpty.await();
+			return next;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/** Remove and return the next request to send, waiting up to given timeout; returns null if none became available. */
+	public RequestReplyBundle poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			RequestReplyBundle next;
+			while ((next = next()) == null) {
+				if (nanos <= 0)
+					return null;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return next;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/** Remove and return the next request to send without waiting; returns null if none. */
+	public RequestReplyBundle poll() {
+		lock.lock();
+		try {
+			return next();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/** Remove and return the next request of a higher priority (lower value) than given, without waiting; returns null if none. */
+	public RequestReplyBundle pollAbove(int priority) {
+		lock.lock();
+		try {
+			for (int i = 0; i < priority && i < NUM_PRIORITIES; i++) {
+				RequestReplyBundle next = next(lanes.get(i));
+				if (next != null)
+					return next;
+			}
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/** No. of queue positions in use (a conflated channel counts once). */
+	public int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/** No. of pending requests cancelled so far by emergency requests. */
+	public int getFlushedCount() {
+		lock.lock();
+		try {
+			return flushedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/** Remove all pending requests into given list (freshest one per channel). */
+	public void drainTo(List<RequestReplyBundle> pending) {
+		RequestReplyBundle next;
+		lock.lock();
+		try {
+			while ((next = next()) != null)
+				pending.add(next);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private ArrayDeque<RequestReplyBundle> lane(RequestReplyBundle bundle) {
+		return lanes.get(Math.max(0, Math.min(NUM_PRIORITIES - 1, bundle.priority)));
+	}
+	
+	/** Remove all pending requests that are past their deadline at given time (System.nanoTime()) into given list, freeing their positions. */
+	public void drainExpired(long now, List<RequestReplyBundle> expired) {
+		lock.lock();
+		try {
+			for (int i = 0; i < NUM_PRIORITIES; i++) {
+				Iterator<RequestReplyBundle> it = lanes.get(i).iterator();
+				while (it.hasNext()) {
+					RequestReplyBundle position = it.next();
+					RequestReplyBundle bundle = (position.channel != null ? latest.get(position.channel) : position);
+					if (bundle != null && !bundle.isDone() && !bundle.isExpired(now))
+						continue;
+					it.remove();
+					size--;
+					if (position.channel != null)
+						latest.remove(position.channel);
+					if (bundle != null && !bundle.isDone())
+						expired.add(bundle);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/** Pop next live bundle: an emergency if any, else from the highest-priority lane that has one (or the oldest, see MAX_BYPASS). NOTE: Call with lock held. */
+	private RequestReplyBundle next() {
+		RequestReplyBundle next = next(lanes.get(PRIORITY_EMERGENCY));
+		if (next != null)
+			return next;
+		while (true) {
+			// Find highest-priority lane with a request, and the one with the oldest request
+			ArrayDeque<RequestReplyBundle> top = null, oldest = null;
+			boolean waiting = false; // lower-priority requests waiting behind top
+			for (int i = PRIORITY_EMERGENCY + 1; i < NUM_PRIORITIES; i++) {
+				ArrayDeque<RequestReplyBundle> lane = lanes.get(i);
+				RequestReplyBundle head = lane.peekFirst();
+				if (head == null)
+					continue;
+				if (top == null)
+					top = lane;
+				else
+					waiting = true;
+				if (oldest == null || head.issueTime - oldest.peekFirst().issueTime < 0)
+					oldest = lane;
+			}
+			if (top == null)
+				return null;
+			
+			ArrayDeque<RequestReplyBundle> lane = (waiting && bypassCount >= MAX_BYPASS ? oldest : top);
+			next = next(lane);
+			if (next == null)
+				continue; // lane only held cancelled or superseded requests, look again
+			bypassCount = (lane == top && waiting ? bypassCount + 1 : 0);
+			return next;
+		}
+	}
+	
+	/** Pop next live bundle from given lane, resolving channel positions to their freshest bundle. NOTE: Call with lock held. */
+	private RequestReplyBundle next(ArrayDeque<RequestReplyBundle> lane) {
+		RequestReplyBundle head;
+		while ((head = lane.pollFirst()) != null) {
+			size--;
+			if (head.channel != null)
+				head = latest.remove(head.channel); // the position holder may have been superseded
+			if (head != null && !head.isDone())
+				return head;
+		}
+		return null;
+	}
+	
+	/** Remove given channel's position from the lane below emergency it is in; returns false if not in one. NOTE: Call with lock held. */
+	private boolean removePosition(String channel) {
+		for (int i = PRIORITY_EMERGENCY + 1; i < NUM_PRIORITIES; i++) {
+			Iterator<RequestReplyBundle> it = lanes.get(i).iterator();
+			while (it.hasNext()) {
+				if (channel.equals(it.next().channel)) {
+					it.remove();
+					size--;
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/** Remove all live bundles in lanes below given priority; returns them (or null if none) to be cancelled outside the lock. NOTE: Call with lock held. */
+	private List<RequestReplyBundle> flushBelow(int priority) {
+		List<RequestReplyBundle> flushed = null;
+		for (int i = priority + 1; i < NUM_PRIORITIES; i++) {
+			RequestReplyBundle next;
+			while ((next = next(lanes.get(i))) != null) {
+				if (flushed == null)
+					flushed = new ArrayList<RequestReplyBundle>();
+				flushed.add(next);
+			}
+		}
+		if (flushed != null)
+			flushedCount += flushed.size();
+		return flushed;
+	}
+	
+	/** Cancel flushed bundles (superseded bundles chained to them are cancelled too). */
+	private static void cancelAll(List<RequestReplyBundle> flushed) {
+		if (flushed == null)
+			return;
+		for (RequestReplyBundle bundle : flushed)
+			bundle.cancel(false);
+	}
+}
@@ -0,0 +1,140 @@
+package edu.ncsu.ieee.botcontrol;
+
+/**
+ * Input stage between raw touch samples and the control loop, for one 2-D position (e.g. a joystick knob, normalized).
+ *
+ * Samples are added as they come in (including the historical ones that Android batches into each MotionEvent), and smoothed
+ * with a one-euro filter: a low-pass filter whose cutoff rises with speed, so that a resting finger's jitter is suppressed without
+ * adding lag to fast moves. With beta = 0 it is a plain low-pass filter; with minCutoff <= 0 filtering is off.
+ *
+ * The control loop then resamples the filtered position once per tick with sample(), optionally predicted a little ahead along
+ * the current velocity to make up for touch latency. Between samples the last raw position is held, so the output settles on
+ * where the finger stopped (and snaps to it exactly, so that a still finger doesn't produce a trickle of tiny changes).
+ *
+ * Kept free of view state, so that it can be tested and benchmarked on a plain JVM. Thread-safe (samples are typically added on the
+ * UI thread and taken on the control loop thread). Times are in ms, from any monotonic clock (e.g. MotionEvent's event times).
+ */
+public class TouchFilter {
+	public static final float DEFAULT_MIN_CUTOFF = 1.5f; // Hz; cutoff at rest (lower: smoother, more lag)
+	public static final float DEFAULT_BETA = 10.f; // cutoff increase (Hz) per unit of speed (normalized position per s)
+	public static final float DEFAULT_D_CUTOFF = 1.f; // Hz; cutoff of the speed estimate
+	public static final long DEFAULT_PREDICTION = 0; // ms; off
+	private static final float SNAP = 0.002f; // output jumps to the held raw position once this close to it
+	private static final long SETTLE = 60; // ms; with no new samples for this long, the finger has stopped: output the last one
+	
+	private float minCutoff = DEFAULT_MIN_CUTOFF;
+	private float beta = DEFAULT_BETA;
+	private float dCutoff = DEFAULT_D_CUTOFF;
+	private long prediction = DEFAULT_PREDICTION;
+	
+	private boolean active = false; // any samples since reset()?
+	private long lastTime; // ms; time of last sample
+	private float rawX, rawY; // last raw sample
+	private float x, y; // filtered position at lastTime
+	private float dx, dy; // filtered velocity at lastTime (per s)
+	private int sampleCount = 0;
+	private final float[] step = new float[4]; // scratch: x, y, dx, dy
+	
+	/** Configure one-euro filtering (see DEFAULT_*); minCutoff <= 0 turns filtering off. */
+	public synchronized void setFilter(float minCutoff, float beta, float dCutoff) {
+		this.minCutoff = minCutoff;
+		this.beta = Math.max(0.f, beta);
+		this.dCutoff = (dCutoff > 0 ? dCutoff : DEFAULT_D_CUTOFF);
+	}
+	
+	/** Predict sampled positions up to this far (ms) ahead along the current velocity; 0 to turn off. */
+	public synchronized void setPrediction(long horizon) {
+		prediction = Math.max(0, horizon);
+	}
+	
+	/** Forget all samples, e.g. on touch down/up; sample() returns false till the next one is added. */
+	public synchronized void reset() {
+		active = false;
+	}
+	
+	/** Add a raw sample taken at given time; samples must be added in time order (older ones are ignored). */
+	public synchronized void addSample(long time, float sampleX, float sampleY) {
+		sampleCount++;
+		if (!active) {
+			active = true;
+			lastTime = time;
+			rawX = x = sampleX;
+			rawY = y = sampleY;
+			dx = dy = 0.f;
+			return;
+		}
+		if (time < lastTime)
+			return;
+		filter(Math.max(1, time - lastTime), sampleX, sampleY, step);
+		lastTime = time;
+		rawX = sampleX;
+		rawY = sampleY;
+		x = step[0];
+		y = step[1];
+		dx = step[2];
+		dy = step[3];
+	}
+	
+	/**
+	 * Resample at given time (same clock as the samples) into out[0], out[1]: the filtered position, as it would be if the last raw
+	 * sample were still held, plus prediction (if enabled, and the last sample is recent). Returns false if there are no samples.
+	 */
+	public synchronized boolean sample(long time, float[] out) {
+		if (!active)
+			return false;
+		long age = time - lastTime;
+		float outX = x, outY = y;
+		if (age > 0) {
+			filter(age, rawX, rawY, step); // NOTE Not committed: the next sample is filtered from lastTime
+			outX = step[0];
+			outY = step[1];
+		}
+		if (age >= SETTLE || (Math.abs(outX - rawX) < SNAP && Math.abs(outY - rawY) < SNAP)) {
+			outX = rawX;
+			outY = rawY;
+		}
+		if (prediction > 0 && age < prediction) {
+			// Only while the finger is moving (no new samples means it has stopped) and only up to prediction ms past the last sample
+			float lookahead = (prediction - Math.max(0, age)) / 1000.f;
+			outX += dx * lookahead;
+			outY += dy * lookahead;
+		}
+		out[0] = outX;
+		out[1] = outY;
+		return true;
+	}
+	
+	/** No. of raw samples added (incl. ignored ones). */
+	public synchronized int getSampleCount() {
+		return sampleCount;
+	}
+	
+	/** One filter step of dt ms from the current state towards given raw position; result (x, y, dx, dy) is written to result. */
+	private void filter(long dt, float sampleX, float sampleY, float[] result) {
+		if (minCutoff <= 0) {
+			result[0] = sampleX;
+			result[1] = sampleY;
+			result[2] = (sampleX - rawX) * 1000.f / dt;
+			result[3] = (sampleY - rawY) * 1000.f / dt;
+			return;
+		}
+		float seconds = dt / 1000.f;
+		
+		// Smooth the velocity, then pick the position cutoff from the speed (both axes share it, so that direction is preserved)
+		float alphaD = alpha(dCutoff, seconds);
+		float newDx = dx + alphaD * ((sampleX - x) / seconds - dx);
+		float newDy = dy + alphaD * ((sampleY - y) / seconds - dy);
+		float cutoff = minCutoff + beta * (float) Math.hypot(newDx, newDy);
+		float alpha = alpha(cutoff, seconds);
+		result[0] = x + alpha * (sampleX - x);
+		result[1] = y + alpha * (sampleY - y);
+		result[2] = newDx;
+		result[3] = newDy;
+	}
+	
+	/** Smoothing factor of a first-order low-pass filter with given cutoff (Hz), for a step of given length (s). */
+	private static float alpha(float cutoff, float seconds) {
+		float tau = 1.f / (2.f * (float) Math.PI * cutoff);
+		return 1.f / (1.f + tau / seconds);
+	}
+}
@@ -15,14 +15,17 @@ import android.view.View;
 
 /**
  * A touch-based joystick that can capture 2-DoF input.
+ *
+ * Besides reporting each touch event to its listener, the joystick feeds all touch samples (incl. the historical ones batched into
+ * each MotionEvent) through a TouchFilter, which a control loop can resample once per tick with sampleKnob().
  */
 public class TouchJoystick extends View {
 	private static final String TAG = "TouchJoystick";    ///< Tag to be used with log messages
 	private static final float maxKnobRangeRatio = 0.85f;  ///< Upper bound for knob's valid input range, expressed as a fraction of available range
 	
 	// Shape enum constants (NOTE these need to match values defined in attrs_touch_joystick.xml)
-	private static final int shape_circle = 0;
-	private static final int shape_square = 1;
+	private static final int shape_circle = KnobLimits.SHAPE_CIRCLE;
+	private static final int shape_square = KnobLimits.SHAPE_SQUARE;
 	
 	// View-related attributes (read from XML)
 	private int shape = shape_circle; ///< Shape of the joystick's interactive region (used for display as well as limits)
@@ -42,6 +45,9 @@ public class TouchJoystick extends View {
 	public float maxKnobX = 100.f; ///< Maximum X distance from center; will be updated if view size changes
 	public float maxKnobY = 100.f; ///< Maximum Y distance from center; will be updated if view size changes
 	// NOTE maxKnobX = maxKnobY = maxKnobR when shape = circle
+	private final float[] knob = new float[2]; ///< Scratch space for clamped knob position (avoids allocation per update)
+	private final TouchFilter touchFilter = new TouchFilter(); ///< Filtered touch samples, for sampleKnob() (NOTE: thread-safe)
+	private final float[] sampledKnob = new float[2]; ///< Scratch space for sampleKnob() (NOTE: guarded by touchFilter)
 	
 	// Display parameters
 	private float knobSize = 20.f; ///< Radius of circle drawn to denote knob position
@@ -138,6 +144,25 @@ public class TouchJoystick extends View {
 	
 	@Override
 	public boolean onTouchEvent(MotionEvent event) {
+		// Feed touch samples to filter: all batched (historical) ones since the last event, then the current one
+		// NOTE Touch down isn't a sample: the filter is seeded by the first move, so that a tap never produces a movement command
+		switch (event.getActionMasked()) {
+		case MotionEvent.ACTION_DOWN:
+			touchFilter.reset();
+			break;
+		
+		case MotionEvent.ACTION_MOVE:
+			for (int i = 0; i < event.getHistorySize(); i++)
+				touchFilter.addSample(event.getHistoricalEventTime(i), (event.getHistoricalX(i) - centerX) / maxKnobX, (event.getHistoricalY(i) - centerY) / maxKnobY);
+			touchFilter.addSample(event.getEventTime(), (event.getX() - centerX) / maxKnobX, (event.getY() - centerY) / maxKnobY);
+			break;
+		
+		case MotionEvent.ACTION_UP:
+		case MotionEvent.ACTION_CANCEL:
+			touchFilter.reset();
+			break;
+		}
+		
 		// If a listener is set and it returns true, then return true, else return value from default implementation
 		return ((listener != null
 					&& listener.onJoystickEvent(this, event.getAction(), (event.getX() - centerX) / maxKnobX, (event.getY() - centerY) / maxKnobY))
@@ -186,41 +211,35 @@ public class TouchJoystick extends View {
 	}
 	
 	public void updateKnob(final float x, final float y) {
-		// Update knob position
-		knobXNorm = x;
-		knobYNorm = y;
-		
-		// Clamp knob position to shape-dependent limits
-		switch(shape) {
-		case shape_circle:
-			double knobRNorm = Math.hypot(knobXNorm, knobYNorm);
-			if (knobRNorm > 1.0) {
-				/*
-				// Method 1: Compute angle, then project to unit radius
-				double knobTheta = Math.atan2(knobYNorm, knobXNorm);
-				knobXNorm = (float) Math.cos(knobTheta);
-				knobYNorm = (float) Math.sin(knobTheta);
-				*/
-				
-				// Method 2: Normalize x, y by actual radius (more efficient?)
-				knobXNorm /= (float) knobRNorm;
-				knobYNorm /= (float) knobRNorm;
-			}
-			break;
-		
-		case shape_square:
-			// NOTE The square shape can actually be asymmetric (i.e. a rectangle) since X and Y are clamped independently
-			if (Math.abs(knobXNorm) > 1.f)
-				knobXNorm = Math.copySign(1.f, knobXNorm);
-			if (Math.abs(knobYNorm) > 1.f)
-				knobYNorm = Math.copySign(1.f, knobYNorm);
-			break;
-		}
+		// Update knob position, clamped to shape-dependent limits
+		KnobLimits.clamp(shape, x, y, knob);
+		knobXNorm = knob[0];
+		knobYNorm = knob[1];
 		//Log.d(TAG, "updateKnob(): knob @ (" + knobXNorm + ", " + knobYNorm + ")");
 		
 		// Invalidate view
 		invalidate();
 	}
+	
+	/**
+	 * Filtered (and possibly predicted) knob position at given time (SystemClock.uptimeMillis() based, like touch event times),
+	 * clamped to shape-dependent limits, into out[0], out[1]. Returns false if the joystick isn't being dragged (not touched, or
+	 * touched but not moved yet).
+	 * NOTE: Can be called from any thread, e.g. once per control loop tick. Does not move the displayed knob.
+	 */
+	public boolean sampleKnob(long time, float[] out) {
+		synchronized (touchFilter) {
+			if (!touchFilter.sample(time, sampledKnob))
+				return false;
+			KnobLimits.clamp(shape, sampledKnob[0], sampledKnob[1], out);
+			return true;
+		}
+	}
+	
+	/** Filter applied to touch samples before sampleKnob(); configure it with its setters. */
+	public TouchFilter getTouchFilter() {
+		return touchFilter;
+	}
 
 	private void updateMessageDisplayParams() {
 		if(messageText != null) {
@@ -1,7 +1,12 @@
 package edu.ncsu.ieee.botcontrol;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQException;
@@ -9,27 +14,257 @@ import org.zeromq.ZMQException;
 import zmq.ZError;
 import android.util.Log;
 
-/** Simple ZMQ request-reply client that uses an internal request queue. */
+/**
+ * Simple ZMQ request-reply client that uses an internal request queue.
+ *
+ * Replies are waited for with a timeout ("lazy pirate"): if none arrives in time (e.g. lost over a Wi-Fi blip, or the server was
+ * restarted), the socket is closed and reconnected, and the request is retried if it is idempotent, else failed.
+ */
 public class ZMQClientThread extends ZMQThread {
 	private static final String TAG = "ZMQClientThread";
 	
 	public static final String SERVER_HOST = "127.0.0.1"; // default host address client connects to
 	public static final int MAX_REQUESTS = 10; // no. of requests client can keep in queue
+	public static final long DEFAULT_REQUEST_TIMEOUT = 2500; // ms; how long to wait for a reply before giving up on the socket
+	public static final int DEFAULT_MAX_RETRIES = 2; // no. of times an idempotent request is resent after a timeout
+	protected static final boolean LOG_MESSAGES = Log.isLoggable(TAG, Log.DEBUG); // log every message sent/received (adb shell setprop log.tag.ZMQClientThread DEBUG)
 	
-	private String serverAddress = null;
+	protected String serverAddress = null;
 	
-	/** Simple data structure to encapsulate a request and corresponding reply string with a serviced flag. */
-	public class RequestReplyBundle {
-		public String request = null;
-		public String reply = null;
-		public boolean serviced = false;
+	/**
+	 * A request and its corresponding reply, completed by the client thread once the reply arrives.
+	 * 
+	 * Can be used as a Future (blocking get(), with or without timeout; cancel() while still queued),
+	 * or non-blockingly by attaching an OnReplyListener.
+	 */
+	public static class RequestReplyBundle implements Future<String> {
+		/** Callback invoked once a bundle is done (replied, failed or cancelled). NOTE: Runs on the completing thread, keep it short. */
+		public interface OnReplyListener {
+			public void onReply(RequestReplyBundle bundle);
+		}
+		
+		public final byte[] request;
+		public final String channel; ///< Conflation channel (e.g. "obj_name.method"); null for plain FIFO requests
+		public final String label; ///< Name to record latency under (e.g. "obj_name.method"); defaults to channel
+		public final boolean idempotent; ///< Safe to send again if the reply is lost (conflated requests always are)
+		public final int priority; ///< Priority class (RequestQueue.PRIORITY_*): lane the request waits in
+		public final long timeToLive; ///< ms; how long the request is worth sending after being issued; 0 for no deadline
+		
+		final long issueTime = System.nanoTime(); ///< When the request was issued (queued)
+		long sendTime = 0; ///< When the request was sent; set by the client thread
+		
+		private String reply = null;
+		private Throwable failure = null;
+		private boolean cancelled = false;
+		private boolean sent = false; // handed to a socket at least once (see wasSent())
+		private boolean done = false; // NOTE: Waiters (get()) are woken on the bundle's monitor, so no latch is allocated per request
+		private OnReplyListener firstListener = null; // most bundles have at most one listener
+		private List<OnReplyListener> moreListeners = null; // created lazily, for any further ones
 		
 		public RequestReplyBundle(String req) {
+			this(req.getBytes(), null);
+		}
+		
+		public RequestReplyBundle(byte[] req, String chan) {
+			this(req, chan, chan);
+		}
+		
+		public RequestReplyBundle(byte[] req, String chan, String lbl) {
+			this(req, chan, lbl, chan != null);
+		}
+		
+		public RequestReplyBundle(byte[] req, String chan, String lbl, boolean idem) {
+			this(req, chan, lbl, idem, RequestQueue.PRIORITY_CONTROL);
+		}
+		
+		public RequestReplyBundle(byte[] req, String chan, String lbl, boolean idem, int prio) {
+			this(req, chan, lbl, idem, prio, 0);
+		}
+		
+		public RequestReplyBundle(byte[] req, String chan, String lbl, boolean idem, int prio, long ttl) {
 			request = req;
+			channel = chan;
+			label = lbl;
+			idempotent = idem;
+			priority = prio;
+			timeToLive = ttl;
+		}
+		
+		/** Check if the request has outlived its deadline at given time (System.nanoTime()); a stale request should not be sent. */
+		public boolean isExpired(long now) {
+			return (timeToLive > 0 && now - issueTime > timeToLive * 1000000L);
+		}
+		
+		/**
+		 * Check if the request was ever handed to a socket. NOTE: ZMQ sends the request array without copying it, so unless a reply
+		 * arrived, a socket may still hold it (e.g. queued for a peer that is down): don't reuse the array then.
+		 */
+		public synchronized boolean wasSent() {
+			return sent;
+		}
+		
+		/** Mark request as handed to a socket; set by the client thread before sending. */
+		synchronized void markSent() {
+			sent = true;
+		}
+		
+		/** Attach a listener; if the bundle is already done, it is invoked immediately on the calling thread. */
+		public void addOnReplyListener(OnReplyListener listener) {
+			synchronized (this) {
+				if (!done) {
+					if (firstListener == null) {
+						firstListener = listener;
+					}
+					else {
+						if (moreListeners == null)
+							moreListeners = new ArrayList<OnReplyListener>(1);
+						moreListeners.add(listener);
+					}
+					return;
+				}
+			}
+			listener.onReply(this);
+		}
+		
+		/** Mark bundle as serviced with given reply. Returns false if it was already done. */
+		boolean complete(String reply) {
+			synchronized (this) {
+				if (done)
+					return false;
+				this.reply = reply;
+				done = true;
+			}
+			finish();
+			return true;
+		}
+		
+		/** Mark bundle as failed with given cause. Returns false if it was already done. */
+		boolean fail(Throwable cause) {
+			synchronized (this) {
+				if (done)
+					return false;
+				failure = cause;
+				done = true;
+			}
+			finish();
+			return true;
+		}
+		
+		/** Resolve this bundle with the outcome of a newer request that superseded it (on the same channel). */
+		void chainTo(RequestReplyBundle successor) {
+			successor.addOnReplyListener(new OnReplyListener() {
+				@Override
+				public void onReply(RequestReplyBundle bundle) {
+					if (bundle.isCancelled())
+						cancel(false);
+					else if (bundle.getFailure() != null)
+						fail(bundle.getFailure());
+					else
+						complete(bundle.getReply());
+				}
+			});
+		}
+		
+		/** Cancel bundle if it hasn't been serviced yet; the client thread will skip it. NOTE: A request already on the wire cannot be recalled. */
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			synchronized (this) {
+				if (done)
+					return false;
+				cancelled = true;
+				done = true;
+			}
+			finish();
+			return true;
+		}
+		
+		private void finish() {
+			OnReplyListener first;
+			List<OnReplyListener> more;
+			synchronized (this) {
+				notifyAll(); // wake get()
+				first = firstListener;
+				more = moreListeners;
+				firstListener = null;
+				moreListeners = null;
+			}
+			if (first != null)
+				first.onReply(this);
+			if (more != null) {
+				for (OnReplyListener next : more)
+					next.onReply(this);
+			}
+		}
+		
+		@Override
+		public synchronized boolean isCancelled() {
+			return cancelled;
+		}
+		
+		@Override
+		public synchronized boolean isDone() {
+			return done;
+		}
+		
+		/** Reply string, or null if not (successfully) serviced yet. */
+		public synchronized String getReply() {
+			return reply;
+		}
+		
+		/** Cause of failure, or null if not failed. */
+		public synchronized Throwable getFailure() {
+			return failure;
+		}
+		
+		@Override
+		public String get() throws InterruptedException, ExecutionException {
+			synchronized (this) {
+				while (!done)
+					wait();
+			}
+			return getResult();
+		}
+		
+		@Override
+		public String get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			synchronized (this) {
+				long deadline = System.nanoTime() + unit.toNanos(timeout);
+				while (!done) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0)
+						throw new TimeoutException("No reply within " + unit.toMillis(timeout) + " ms");
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				}
+			}
+			return getResult();
+		}
+		
+		private synchronized String getResult() throws ExecutionException {
+			if (cancelled)
+				throw new CancellationException();
+			if (failure != null)
+				throw new ExecutionException(failure);
+			return reply;
 		}
 	}
 	
-	private BlockingQueue<RequestReplyBundle> requestQueue = new LinkedBlockingQueue<RequestReplyBundle>(MAX_REQUESTS);
+	protected RequestQueue requestQueue = new RequestQueue(MAX_REQUESTS);
+	
+	private volatile BatchFormat batchFormat = null; // null: batching disabled
+	private volatile long batchWindow = 0; // ms; how long to wait for more requests to batch with the first one
+	private volatile int maxBatchSize = 1;
+	private RequestReplyBundle deferredRequest = null; // request taken while batching that couldn't join the batch; sent next (NOTE: Only accessed on this thread)
+	private volatile LatencyStats latencyStats = null; // null: latency recording disabled
+	private volatile long requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+	private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+	protected volatile int timeoutCount = 0; // NOTE: Counters are only written on this thread
+	protected volatile int retryCount = 0;
+	protected volatile int reconnectCount = 0;
+	protected volatile int expiredCount = 0;
+	private volatile long[] timeToLive = new long[RequestQueue.NUM_PRIORITIES]; // ms, per priority class; 0: no deadline (NOTE: Copied on write)
+	private volatile boolean hasTimeToLive = false; // any deadlines set? (else no need to look for expired requests)
+	private final List<RequestReplyBundle> expiredRequests = new ArrayList<RequestReplyBundle>(); // NOTE: Only accessed on this thread
+	private ZMQ.Poller replyPoller = null; // NOTE: Only accessed on this thread
 	
 	public ZMQClientThread() {
 		this(ZMQServerThread.SERVER_PROTOCOL, SERVER_HOST, ZMQServerThread.SERVER_PORT);
@@ -40,29 +275,176 @@ public class ZMQClientThread extends ZMQThread {
 	}
 	
 	public ZMQClientThread(String serverAddress) {
-		super(ZMQ.REQ);
+		this(serverAddress, ZMQ.REQ);
+	}
+	
+	/** For derived clients that talk to the server over a different socket type (e.g. ZMQ.DEALER). */
+	protected ZMQClientThread(String serverAddress, int socketType) {
+		super(socketType);
 		this.serverAddress = serverAddress;
 	}
 	
-	/** Services a request string and returns a reply when done. Returns null if block is false and service queue is not empty. */
+	/** Services a request string and returns a reply when done. Returns null if block is false and service queue is not empty, or if the request failed. */
 	public String serviceRequestSync(String request, boolean block) {
-		if (block || requestQueue.isEmpty()) {
-			RequestReplyBundle requestReplyBundle = new RequestReplyBundle(request);
-			requestQueue.add(requestReplyBundle);
-			while (!requestReplyBundle.serviced)
-				yield();
-			return requestReplyBundle.reply;
+		if (block || requestQueue.size() == 0) {
+			RequestReplyBundle requestReplyBundle = serviceRequestAsync(request);
+			try {
+				return requestReplyBundle.get();
+			} catch (InterruptedException e) {
+				requestReplyBundle.cancel(false);
+				Thread.currentThread().interrupt(); // preserve interrupt status for caller
+			} catch (ExecutionException e) {
+				Log.w(TAG, "serviceRequestSync(): Request failed: " + e.getCause());
+			} catch (CancellationException e) {
+				Log.d(TAG, "serviceRequestSync(): Request cancelled: " + request);
+			}
+			return null;
 		}
 		Log.w(TAG, "serviceRequestSync(): Dropped request: " + request);
 		return null;
 	}
 
-	/** Services a request string and returns a RequestReplyBundle object immediately. Client is expected to test the serviced flag. */
+	/** Services a request string and returns a RequestReplyBundle object immediately. Client can wait on it as a Future or attach a listener. */
 	public RequestReplyBundle serviceRequestAsync(String request) {
-		RequestReplyBundle requestReplyBundle = new RequestReplyBundle(request);
-		requestQueue.add(requestReplyBundle);
+		return serviceRequestAsync(request.getBytes());
+	}
+	
+	/** Services an already encoded request and returns a RequestReplyBundle object immediately. */
+	public RequestReplyBundle serviceRequestAsync(byte[] request) {
+		return serviceRequestAsync(request, null);
+	}
+	
+	/** Services an already encoded request, recording its latency under given label (see setLatencyStats()). Not retried on timeout. */
+	public RequestReplyBundle serviceRequestAsync(byte[] request, String label) {
+		return serviceRequestAsync(request, label, false);
+	}
+	
+	/** Services an already encoded request; if idempotent, it is resent (up to the retry limit) when its reply times out. */
+	public RequestReplyBundle serviceRequestAsync(byte[] request, String label, boolean idempotent) {
+		return serviceRequestAsync(request, label, idempotent, RequestQueue.PRIORITY_CONTROL);
+	}
+	
+	/**
+	 * Services an already encoded request in given priority class (RequestQueue.PRIORITY_*); it is sent after all pending requests
+	 * of higher priority. An emergency request cancels all pending requests of lower priority.
+	 */
+	public RequestReplyBundle serviceRequestAsync(byte[] request, String label, boolean idempotent, int priority) {
+		RequestReplyBundle requestReplyBundle = new RequestReplyBundle(request, null, label, idempotent, priority, getTimeToLive(priority));
+		if (!requestQueue.offer(requestReplyBundle)) {
+			Log.w(TAG, "serviceRequestAsync(): Request queue full, dropped request: " + label + " (" + request.length + " bytes)");
+			requestReplyBundle.fail(new IllegalStateException("Request queue full"));
+		}
+		return requestReplyBundle;
+	}
+	
+	/**
+	 * Services a request on a conflation channel and returns a RequestReplyBundle object immediately.
+	 * A newer request on the same channel replaces this one if it hasn't been sent yet (the bundle then completes with the newer request's reply).
+	 */
+	public RequestReplyBundle serviceRequestLatest(String channel, String request) {
+		return serviceRequestLatest(channel, request.getBytes());
+	}
+	
+	/** Services an already encoded request on a conflation channel; see serviceRequestLatest(String, String). */
+	public RequestReplyBundle serviceRequestLatest(String channel, byte[] request) {
+		return serviceRequestLatest(channel, request, RequestQueue.PRIORITY_CONTROL);
+	}
+	
+	/**
+	 * Services an already encoded request on a conflation channel, in given priority class (see serviceRequestAsync()).
+	 * NOTE: An emergency request on a channel only jumps the queue, it doesn't cancel the requests pending on other channels.
+	 */
+	public RequestReplyBundle serviceRequestLatest(String channel, byte[] request, int priority) {
+		RequestReplyBundle requestReplyBundle = new RequestReplyBundle(request, channel, channel, true, priority, getTimeToLive(priority));
+		if (!requestQueue.offerLatest(requestReplyBundle)) {
+			Log.w(TAG, "serviceRequestLatest(): Request queue full, dropped request: " + channel + " (" + request.length + " bytes)");
+			requestReplyBundle.fail(new IllegalStateException("Request queue full"));
+		}
 		return requestReplyBundle;
 	}
+	
+	/**
+	 * Enable batching: requests queued within window ms of each other (up to maxSize) are sent as a single message in given format.
+	 * Pass a null format to disable. NOTE: Only enable if the server supports the format (e.g. as advertised in its ping_reply).
+	 */
+	public void setBatching(BatchFormat format, long window, int maxSize) {
+		batchWindow = window;
+		maxBatchSize = maxSize;
+		batchFormat = format;
+	}
+	
+	/** Record queue wait and round-trip time of each request in given stats (null to disable). */
+	public void setLatencyStats(LatencyStats stats) {
+		latencyStats = stats;
+	}
+	
+	/**
+	 * How long to wait for a reply (ms), and how many times to resend idempotent requests when it doesn't come.
+	 * A request that runs out of retries (or isn't idempotent) fails with a TimeoutException.
+	 */
+	public void setRequestTimeout(long timeout, int maxRetries) {
+		if (timeout <= 0 || maxRetries < 0)
+			throw new IllegalArgumentException("Invalid request timeout: " + timeout + " ms, " + maxRetries + " retries");
+		this.requestTimeout = timeout;
+		this.maxRetries = maxRetries;
+	}
+	
+	public long getRequestTimeout() {
+		return requestTimeout;
+	}
+	
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+	
+	/**
+	 * Give requests of given priority class a deadline: if one is still queued ttl ms after being issued (e.g. after a stall), it is
+	 * discarded instead of sent, and fails with a TimeoutException. NOTE: Only limits the wait in the queue; once sent, a request is
+	 * retried as set with setRequestTimeout() (a ttl shorter than the request timeout would otherwise rule out every retry).
+	 * Pass 0 for no deadline (default). NOTE: Applies to requests issued after the call.
+	 */
+	public synchronized void setTimeToLive(int priority, long ttl) {
+		long[] updated = timeToLive.clone();
+		updated[priority] = Math.max(0, ttl);
+		timeToLive = updated;
+		if (ttl > 0)
+			hasTimeToLive = true;
+	}
+	
+	public long getTimeToLive(int priority) {
+		long[] current = timeToLive;
+		return (priority >= 0 && priority < current.length ? current[priority] : 0);
+	}
+	
+	/** No. of requests discarded because they were past their deadline when their turn came. */
+	public int getExpiredCount() {
+		return expiredCount;
+	}
+	
+	/** No. of replies that timed out (each one also means a reconnect). */
+	public int getTimeoutCount() {
+		return timeoutCount;
+	}
+	
+	/** No. of requests (or batches) resent after a timeout. */
+	public int getRetryCount() {
+		return retryCount;
+	}
+	
+	/** No. of times the socket was closed and reconnected. */
+	public int getReconnectCount() {
+		return reconnectCount;
+	}
+	
+	/** No. of requests waiting to be sent (each conflation channel counts once). */
+	public int getPendingCount() {
+		return requestQueue.size();
+	}
+	
+	/** No. of pending requests cancelled by emergency requests. */
+	public int getFlushedCount() {
+		return requestQueue.getFlushedCount();
+	}
 
 	@Override
 	public void run() {
@@ -70,16 +452,53 @@ public class ZMQClientThread extends ZMQThread {
 		socket.connect(serverAddress);
 		Log.i(TAG, "run(): Connected to " + serverAddress);
 		
-		// Service requests from queue till interrupted
-		while(!isInterrupted()) {
+		// Service requests from queue till terminated
+		List<RequestReplyBundle> requests = new ArrayList<RequestReplyBundle>(); // requests on the wire: a single one, or a batch
+		while(!isTerminating()) {
 			try {
-				RequestReplyBundle requestReply = requestQueue.take();
-				Log.d(TAG, "run(): Sending: " + requestReply.request);
-				socket.send(requestReply.request);
+				requests.clear();
+				RequestReplyBundle first = pollRequest(WAKE_INTERVAL);
+				if (first == null)
+					continue; // nothing to send yet, check if terminated
+				BatchFormat format = collectBatch(first, requests); // NOTE The reply is split with the format the batch was sent in
+				byte[] request = encodeRequests(requests, format);
+				if (LOG_MESSAGES)
+					Log.d(TAG, "run(): Sending: " + describe(requests, request));
+				socket.send(request);
 				
-				requestReply.reply = new String(socket.recv());
-				requestReply.serviced = true;
-				Log.d(TAG, "run(): Received: " + requestReply.reply);
+				byte[] replyFrame = null;
+				for (int attempt = 0; replyFrame == null && !isTerminating(); attempt++) {
+					long timeout = requestTimeout;
+					replyFrame = awaitReply(timeout);
+					if (replyFrame != null || isTerminating())
+						break;
+					
+					// No reply in time: the REQ socket is stuck waiting for it, so replace it and start over
+					timeoutCount++;
+					Log.w(TAG, "run(): No reply within " + timeout + " ms (attempt " + (attempt + 1) + "), reconnecting...");
+					reconnect();
+					if (requests.size() == 1 && requestQueue.supersede(requests.get(0))) {
+						Log.d(TAG, "run(): Not resending " + requests.get(0).label + ", a newer request on its channel is queued");
+						requests.clear(); // completes with the newer request's reply
+						break;
+					}
+					if (attempt >= maxRetries || !allIdempotent(requests)) {
+						failRequests(requests, new TimeoutException("No reply within " + timeout + " ms" + (attempt > 0 ? " (" + attempt + " retries)" : "")));
+						break;
+					}
+					retryCount++;
+					long now = System.nanoTime();
+					for (int i = 0; i < requests.size(); i++)
+						requests.get(i).sendTime = now; // RTT of a retried request is measured from the last send
+					socket.send(request);
+				}
+				if (replyFrame == null)
+					continue; // timed out (requests failed or superseded), or terminated
+				String reply = new String(replyFrame);
+				if (LOG_MESSAGES)
+					Log.d(TAG, "run(): Received: " + reply);
+				completeRequests(requests, reply, format);
+				requests.clear();
 			} catch (InterruptedException e) {
 				Log.d(TAG, "run(): Interrupted!");
 				break;
@@ -88,21 +507,239 @@ public class ZMQClientThread extends ZMQThread {
 				if(e.getErrorCode () == ZMQ.Error.ETERM.getCode()) {
 					break;
 				}
+				// Socket is in an unknown state (e.g. a REQ send/recv out of order): fail what was on the wire and start over
+				failRequests(requests, e);
+				reconnect();
 			} catch (ZError.IOException e) {
 				Log.w(TAG, "run(): Closed by interrupt (still waiting to send)? Exception: " + e);
-				return; // skip trying to close socket - it'll cause another exception
+				failRequests(requests, e);
+				failQueued(e);
+				closeSocket(); // returns socket's reference to the shared context (closing it may fail)
+				return;
 			}
 		}
+		failRequests(requests, new InterruptedException("Client thread stopped"));
+		failQueued(new InterruptedException("Client thread stopped"));
 		
 		// Close socket
 		Log.d(TAG, "run(): Closing socket...");
-		socket.close();
+		closeSocket();
 		Log.d(TAG, "run(): Done.");
 	}
 	
+	/** Wait up to given timeout (ms) for a reply; returns null if none arrived, or if terminated while waiting. */
+	private byte[] awaitReply(long timeout) {
+		if (replyPoller == null) {
+			replyPoller = new ZMQ.Poller(1);
+			replyPoller.register(socket, ZMQ.Poller.POLLIN);
+		}
+		ZMQ.Poller poller = replyPoller;
+		long deadline = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+		while (remaining > 0 && !isTerminating()) {
+			if (poller.poll(Math.min(remaining, WAKE_INTERVAL)) > 0 && poller.pollin(0))
+				return socket.recv(ZMQ.DONTWAIT);
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return null;
+	}
+	
+	/** Close socket and connect a fresh one, dropping any reply still on its way to the old one. */
+	protected void reconnect() {
+		resetSocket();
+		socket.connect(serverAddress);
+		replyPoller = null; // polls the old socket
+		reconnectCount++;
+	}
+	
+	/** Check if all given requests may be resent. */
+	protected static boolean allIdempotent(List<RequestReplyBundle> requests) {
+		for (int i = 0; i < requests.size(); i++) {
+			if (!requests.get(i).idempotent)
+				return false;
+		}
+		return true;
+	}
+	
+	/** Next request to send, waiting if necessary. NOTE: Derived classes must take requests through this (or pollRequest()), not requestQueue. */
+	protected RequestReplyBundle takeRequest() throws InterruptedException {
+		RequestReplyBundle next;
+		do {
+			next = takeDeferredRequest();
+			if (next == null)
+				next = requestQueue.take(); // never returns cancelled or superseded requests
+		} while (discardIfExpired(next));
+		return next;
+	}
+	
+	/** Next request to send, waiting up to given timeout (ms); returns null if none. Expired requests are skipped. */
+	protected RequestReplyBundle pollRequest(long timeout) throws InterruptedException {
+		discardExpired();
+		long deadline = System.currentTimeMillis() + timeout;
+		RequestReplyBundle next;
+		do {
+			next = takeDeferredRequest();
+			if (next == null) {
+				long remaining = deadline - System.currentTimeMillis();
+				next = (remaining > 0 ? requestQueue.poll(remaining, TimeUnit.MILLISECONDS) : requestQueue.poll());
+			}
+		} while (next != null && discardIfExpired(next));
+		return next;
+	}
+	
+	/** Next emergency request without waiting, or null if none (e.g. to send one even when no more requests may be in flight). */
+	protected RequestReplyBundle pollEmergencyRequest() {
+		RequestReplyBundle next;
+		do {
+			next = requestQueue.pollAbove(RequestQueue.PRIORITY_CONTROL);
+		} while (next != null && discardIfExpired(next));
+		return next;
+	}
+	
+	/** Fail all queued requests that are past their deadline, so that they don't hold queue positions till their turn comes. */
+	private void discardExpired() {
+		if (!hasTimeToLive)
+			return;
+		long now = System.nanoTime();
+		requestQueue.drainExpired(now, expiredRequests);
+		for (int i = 0; i < expiredRequests.size(); i++)
+			expire(expiredRequests.get(i), now);
+		expiredRequests.clear();
+	}
+	
+	/** Fail given request instead of sending it if it is past its deadline; returns true if so. */
+	private boolean discardIfExpired(RequestReplyBundle requestReply) {
+		long now = System.nanoTime();
+		if (!requestReply.isExpired(now))
+			return false;
+		expire(requestReply, now);
+		return true;
+	}
+	
+	private void expire(RequestReplyBundle requestReply, long now) {
+		long age = now - requestReply.issueTime;
+		expiredCount++;
+		LatencyStats stats = latencyStats;
+		if (stats != null)
+			stats.recordExpired(requestReply.label, age);
+		Log.d(TAG, "discardIfExpired(): Discarding request issued " + age / 1000000L + " ms ago: " + requestReply.label);
+		requestReply.fail(new TimeoutException("Expired in queue (" + requestReply.timeToLive + " ms deadline)"));
+	}
+	
+	/** Deferred request, unless a more urgent one was queued since (which is returned instead, keeping the deferred one). */
+	private RequestReplyBundle takeDeferredRequest() {
+		if (deferredRequest == null)
+			return null;
+		RequestReplyBundle urgent = requestQueue.pollAbove(deferredRequest.priority);
+		if (urgent != null)
+			return urgent;
+		RequestReplyBundle next = deferredRequest;
+		deferredRequest = null;
+		return (next.isDone() ? null : next);
+	}
+	
+	/**
+	 * Add first request to given list, followed by any requests that can be batched with it (if batching is enabled); returns the
+	 * batch format to encode them with. A request with nothing queued behind it is sent right away, without waiting for the window.
+	 */
+	protected BatchFormat collectBatch(RequestReplyBundle first, List<RequestReplyBundle> batch) throws InterruptedException {
+		batch.add(first);
+		BatchFormat format = batchFormat;
+		if (format == null || !format.isBatchable(first.request) || first.priority == RequestQueue.PRIORITY_EMERGENCY)
+			return format; // NOTE Emergency requests never wait for a batch to fill
+		if (deferredRequest == null && requestQueue.size() == 0)
+			return format; // lone request: don't delay it on the chance of company
+		
+		long deadline = System.currentTimeMillis() + batchWindow;
+		while (batch.size() < maxBatchSize && deferredRequest == null) { // NOTE A deferred request may still be waiting if first was more urgent
+			RequestReplyBundle next = pollRequest(deadline - System.currentTimeMillis());
+			if (next == null)
+				break;
+			if (!format.isBatchable(next.request)) {
+				deferredRequest = next; // send on its own, right after this batch
+				break;
+			}
+			batch.add(next);
+			if (next.priority == RequestQueue.PRIORITY_EMERGENCY)
+				break; // send right away
+		}
+		return format;
+	}
+	
+	/** Encode given requests into one message: the request itself if there is just one, else a batch. */
+	protected byte[] encodeRequests(List<RequestReplyBundle> requests, BatchFormat format) {
+		// NOTE Requests are sent right after encoding, so this is when they leave the queue
+		LatencyStats stats = latencyStats;
+		long now = System.nanoTime();
+		for (int i = 0; i < requests.size(); i++) {
+			RequestReplyBundle requestReply = requests.get(i);
+			requestReply.sendTime = now;
+			requestReply.markSent();
+			if (stats != null)
+				stats.recordQueue(requestReply.label, now - requestReply.issueTime);
+		}
+		if (requests.size() == 1)
+			return requests.get(0).request;
+		List<byte[]> frames = new ArrayList<byte[]>(requests.size());
+		for (RequestReplyBundle requestReply : requests)
+			frames.add(requestReply.request);
+		return format.encodeBatch(frames);
+	}
+	
+	/** Complete given requests (sent via encodeRequests() in given batch format) with their share of given reply. */
+	protected void completeRequests(List<RequestReplyBundle> requests, String reply, BatchFormat format) {
+		LatencyStats stats = latencyStats;
+		if (stats != null) {
+			long now = System.nanoTime();
+			for (int i = 0; i < requests.size(); i++) {
+				RequestReplyBundle requestReply = requests.get(i);
+				stats.recordRtt(requestReply.label, now - requestReply.sendTime);
+			}
+		}
+		if (requests.size() == 1) {
+			requests.get(0).complete(reply);
+			return;
+		}
+		List<String> replies = (format != null ? format.decodeBatchReply(reply) : null);
+		if (replies == null || replies.size() != requests.size()) {
+			Log.w(TAG, "completeRequests(): Invalid reply to batch of " + requests.size() + ": " + reply);
+			failRequests(requests, new IllegalStateException("Invalid batch reply: " + reply));
+			return;
+		}
+		for (int i = 0; i < requests.size(); i++)
+			requests.get(i).complete(replies.get(i));
+	}
+	
+	/** Describe a message for logs by its requests' labels and its size (payloads may be binary, see CommandCodec). */
+	protected static String describe(List<RequestReplyBundle> requests, byte[] message) {
+		StringBuilder description = new StringBuilder();
+		for (int i = 0; i < requests.size(); i++)
+			description.append(i > 0 ? ", " : "").append(requests.get(i).label);
+		return description.append(" (").append(message.length).append(" bytes)").toString();
+	}
+	
+	/** Fail given requests (that were taken from the queue). */
+	protected void failRequests(List<RequestReplyBundle> requests, Throwable cause) {
+		for (RequestReplyBundle requestReply : requests)
+			requestReply.fail(cause);
+		requests.clear();
+	}
+	
+	/** Fail queued requests so that nobody waits forever on a stopped client. */
+	protected void failQueued(Throwable cause) {
+		if (deferredRequest != null) {
+			deferredRequest.fail(cause);
+			deferredRequest = null;
+		}
+		List<RequestReplyBundle> pending = new ArrayList<RequestReplyBundle>();
+		requestQueue.drainTo(pending);
+		for (RequestReplyBundle bundle : pending)
+			bundle.fail(cause);
+	}
+	
 	@Override
 	public void term() {
 		interrupt(); // interrupt self to break out of queue servicing loop
 		super.term();
 	}
-}
\ No newline at end of file
+}
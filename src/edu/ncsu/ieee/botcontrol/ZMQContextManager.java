@@ -0,0 +1,96 @@
+package edu.ncsu.ieee.botcontrol;
+
+import org.zeromq.ZMQ;
+
+import android.util.Log;
+
+/**
+ * Process-wide ZMQ context, shared by all ZMQThreads (and anything else that needs sockets).
+ *
+ * One context means one set of I/O threads for the whole app, and sockets can be created without spinning up a new context
+ * (e.g. when the client reconnects to a different host). The context is reference-counted: each open socket holds a reference,
+ * and long-lived owners (e.g. an activity) can hold one across reconnects with acquire()/release(). It is created on first use
+ * and terminated once the last reference is released.
+ *
+ * NOTE: Sockets are not thread-safe; open a socket on any thread, but only use and close it on one thread at a time.
+ */
+public class ZMQContextManager {
+	private static final String TAG = "ZMQContextManager";
+	private static final int IO_THREADS = 1;
+	
+	private static ZMQ.Context context = null;
+	private static int refCount = 0;
+	private static int socketCount = 0;
+	
+	/** Take a reference to the shared context (creating it if needed), e.g. to keep it alive while sockets come and go. */
+	public static synchronized ZMQ.Context acquire() {
+		if (context == null) {
+			Log.d(TAG, "acquire(): Creating shared ZMQ context...");
+			context = ZMQ.context(IO_THREADS);
+		}
+		refCount++;
+		return context;
+	}
+	
+	/** Drop a reference taken with acquire(); terminates the context when it was the last one. */
+	public static void release() {
+		ZMQ.Context toTerminate = null;
+		synchronized (ZMQContextManager.class) {
+			if (refCount <= 0) {
+				Log.w(TAG, "release(): No references held!");
+				return;
+			}
+			if (--refCount == 0) {
+				toTerminate = context;
+				context = null;
+			}
+		}
+		if (toTerminate != null) {
+			// All sockets are closed by now (each holds a reference), so this doesn't block for long
+			// NOTE: term() gives up (IllegalStateException, leaving I/O threads running) if the calling thread is interrupted,
+			//   as is the case when a ZMQThread stopped by term() closes the last socket; so clear the interrupt while waiting
+			Log.d(TAG, "release(): Terminating shared ZMQ context...");
+			boolean interrupted = Thread.interrupted();
+			try {
+				toTerminate.term();
+			} finally {
+				if (interrupted)
+					Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * Open a socket of given type on the shared context; close it with closeSocket().
+	 * Sockets don't linger: messages still queued when a socket is closed are dropped, so shutdown never waits on an unreachable peer.
+	 */
+	public static synchronized ZMQ.Socket openSocket(int socketType) {
+		ZMQ.Socket socket = acquire().socket(socketType);
+		socket.setLinger(0);
+		socketCount++;
+		return socket;
+	}
+	
+	/** Close a socket opened with openSocket(), and drop its reference to the context. Call on the thread that uses the socket. */
+	public static void closeSocket(ZMQ.Socket socket) {
+		try {
+			socket.close();
+		} catch (RuntimeException e) {
+			Log.w(TAG, "closeSocket(): Exception while closing socket (closed by interrupt?): " + e);
+		}
+		synchronized (ZMQContextManager.class) {
+			socketCount--;
+		}
+		release();
+	}
+	
+	/** No. of sockets currently open on the shared context. */
+	public static synchronized int getSocketCount() {
+		return socketCount;
+	}
+	
+	/** No. of references currently held (open sockets included); 0 means there is no context. */
+	public static synchronized int getRefCount() {
+		return refCount;
+	}
+}
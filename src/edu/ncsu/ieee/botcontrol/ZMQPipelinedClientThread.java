@@ -0,0 +1,244 @@
+package edu.ncsu.ieee.botcontrol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+
+import zmq.ZError;
+import android.util.Log;
+
+/**
+ * ZMQ client that pipelines requests over a DEALER socket, allowing several requests in flight at once.
+ * 
+ * Each request is sent as [correlation id][empty delimiter][request]. A REP (or ROUTER-based) server echoes the envelope back with
+ * its reply, so replies are matched to their bundles by id, in whatever order they arrive. Request queueing and conflation behave
+ * exactly as in ZMQClientThread (as does batching, where a batch travels under a single id); only the wire lockstep is removed.
+ *
+ * Emergency requests (see RequestQueue) are sent as soon as they are queued, even if the pipeline is full.
+ *
+ * Request timeouts work as in ZMQClientThread: when a reply is overdue, the socket is replaced, dropping every message still
+ * queued on it (DEALER would otherwise keep them while the link is down, and deliver them all once it is back, including ones
+ * already failed here). Then every message that was in flight is resent under a new id (if idempotent) or failed, and a late
+ * reply to an old id is ignored.
+ */
+public class ZMQPipelinedClientThread extends ZMQClientThread {
+	private static final String TAG = "ZMQPipelinedClientThread";
+	
+	public static final int DEFAULT_MAX_IN_FLIGHT = 4; // no. of requests allowed on the wire at a time
+	private static final long IDLE_WAIT = 100; // ms; how long to wait for new requests when nothing is in flight
+	private static final long REPLY_POLL_INTERVAL = 5; // ms; how long to wait for replies before checking for new requests again
+	private static final byte[] EMPTY_FRAME = new byte[0];
+	
+	private final int maxInFlight;
+	private final Map<Integer, InFlight> inFlight = new HashMap<Integer, InFlight>(); // NOTE: Only accessed on this thread
+	private int nextRequestId = 0;
+	private ZMQ.Poller poller = null; // polls socket for replies (NOTE: Only accessed on this thread)
+	
+	/** A message on the wire: the request(s) it carries (in which batch format), and when to give up waiting for its reply. */
+	private static class InFlight {
+		final List<RequestReplyBundle> requests;
+		final byte[] message;
+		final BatchFormat format;
+		long deadline; // ms
+		int attempts = 1;
+		
+		InFlight(List<RequestReplyBundle> requests, byte[] message, BatchFormat format, long deadline) {
+			this.requests = requests;
+			this.message = message;
+			this.format = format;
+			this.deadline = deadline;
+		}
+	}
+	
+	public ZMQPipelinedClientThread(String serverProtocol, String serverHost, int serverPort, int maxInFlight) {
+		this(serverProtocol + "://" + serverHost + ":" + serverPort, maxInFlight);
+	}
+	
+	public ZMQPipelinedClientThread(String serverAddress, int maxInFlight) {
+		super(serverAddress, ZMQ.DEALER);
+		this.maxInFlight = maxInFlight;
+	}
+	
+	/** No. of messages (single requests or batches) sent but not replied to yet. */
+	public int getInFlightCount() {
+		return inFlight.size(); // NOTE: Approximate when called from other threads
+	}
+	
+	@Override
+	public void run() {
+		// Connect socket to server address
+		connect();
+		Log.i(TAG, "run(): Connected to " + serverAddress + " (max. " + maxInFlight + " requests in flight)");
+		
+		// Keep the pipeline full and collect replies till terminated
+		while(!isTerminating()) {
+			try {
+				// Send queued requests while there is room in the pipeline
+				while (inFlight.size() < maxInFlight) {
+					RequestReplyBundle first = pollRequest(inFlight.isEmpty() ? IDLE_WAIT : 0);
+					if (first == null)
+						break;
+					List<RequestReplyBundle> requests = new ArrayList<RequestReplyBundle>(1);
+					BatchFormat format = collectBatch(first, requests);
+					byte[] request = encodeRequests(requests, format);
+					send(new InFlight(requests, request, format, System.currentTimeMillis() + getRequestTimeout()));
+				}
+				
+				// Emergency requests don't wait for room in the pipeline (nor for a batch)
+				RequestReplyBundle emergency;
+				while (inFlight.size() >= maxInFlight && (emergency = pollEmergencyRequest()) != null) {
+					List<RequestReplyBundle> requests = new ArrayList<RequestReplyBundle>(1);
+					requests.add(emergency);
+					send(new InFlight(requests, encodeRequests(requests, null), null, System.currentTimeMillis() + getRequestTimeout()));
+				}
+				
+				// Receive all replies that have arrived, matching them by id
+				if (!inFlight.isEmpty() && poller.poll(REPLY_POLL_INTERVAL) > 0 && poller.pollin(0)) {
+					byte[] idFrame;
+					while ((idFrame = socket.recv(ZMQ.DONTWAIT)) != null) {
+						byte[] replyFrame = idFrame;
+						while (socket.hasReceiveMore())
+							replyFrame = socket.recv(); // skip delimiter, keep last frame as reply body
+						
+						InFlight message = (idFrame.length == 4 ? inFlight.remove(decodeRequestId(idFrame)) : null);
+						if (message == null) {
+							Log.w(TAG, "run(): Ignoring reply with unknown id (timed out?): " + new String(replyFrame));
+							continue;
+						}
+						String reply = new String(replyFrame);
+						if (LOG_MESSAGES)
+							Log.d(TAG, "run(): Received [" + decodeRequestId(idFrame) + "]: " + reply);
+						completeRequests(message.requests, reply, message.format);
+					}
+				}
+				
+				// Retry or fail messages whose replies are overdue
+				if (!inFlight.isEmpty())
+					expireInFlight(System.currentTimeMillis());
+			} catch (InterruptedException e) {
+				Log.d(TAG, "run(): Interrupted!");
+				break;
+			} catch(ZMQException e) {
+				Log.d(TAG, "run(): ZMQException (expected - ZMQ context terminated): " + e);
+				if(e.getErrorCode () == ZMQ.Error.ETERM.getCode()) {
+					break;
+				}
+				// Socket is in an unknown state: fail what was on the wire and start over
+				failInFlight(e);
+				reconnect();
+			} catch (ZError.IOException e) {
+				Log.w(TAG, "run(): Closed by interrupt? Exception: " + e);
+				failInFlight(e);
+				failQueued(e);
+				closeSocket(); // returns socket's reference to the shared context (closing it may fail)
+				return;
+			}
+		}
+		failInFlight(new InterruptedException("Client thread stopped"));
+		failQueued(new InterruptedException("Client thread stopped"));
+		
+		// Close socket
+		Log.d(TAG, "run(): Closing socket...");
+		closeSocket();
+		Log.d(TAG, "run(): Done.");
+	}
+	
+	/** Put given message on the wire under a new id. */
+	private void send(InFlight message) {
+		int requestId = nextRequestId++;
+		if (LOG_MESSAGES)
+			Log.d(TAG, "send(): Sending [" + requestId + "]: " + describe(message.requests, message.message));
+		inFlight.put(requestId, message);
+		socket.sendMore(encodeRequestId(requestId));
+		socket.sendMore(EMPTY_FRAME);
+		socket.send(message.message);
+	}
+	
+	private void expireInFlight(long now) {
+		boolean overdue = false;
+		for (InFlight message : inFlight.values()) {
+			if (message.deadline <= now) {
+				overdue = true;
+				break;
+			}
+		}
+		if (!overdue)
+			return;
+		
+		// Drop everything still queued on the socket, so that nothing failed (or resent) here can go out later;
+		//   replies to the rest of the messages in flight would arrive on the old socket too, so they are resent (or failed) as well
+		reconnect();
+		List<InFlight> toRetry = null;
+		long timeout = getRequestTimeout();
+		Iterator<Map.Entry<Integer, InFlight>> it = inFlight.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Integer, InFlight> entry = it.next();
+			InFlight message = entry.getValue();
+			it.remove();
+			boolean timedOut = (message.deadline <= now);
+			if (timedOut)
+				timeoutCount++;
+			String reason = (timedOut ? "No reply within " + timeout + " ms" : "Reply lost with the old socket");
+			if (message.requests.size() == 1 && requestQueue.supersede(message.requests.get(0))) {
+				Log.d(TAG, "expireInFlight(): [" + entry.getKey() + "] " + reason + ", superseded by a newer request on its channel");
+				continue;
+			}
+			if (message.attempts > getMaxRetries() || !allIdempotent(message.requests)) {
+				Log.w(TAG, "expireInFlight(): [" + entry.getKey() + "] " + reason + ", failing");
+				failRequests(message.requests, new TimeoutException(reason + (message.attempts > 1 ? " (" + (message.attempts - 1) + " retries)" : "")));
+				continue;
+			}
+			Log.w(TAG, "expireInFlight(): [" + entry.getKey() + "] " + reason + ", retrying");
+			message.attempts++;
+			message.deadline = now + timeout;
+			if (toRetry == null)
+				toRetry = new ArrayList<InFlight>(1);
+			toRetry.add(message);
+		}
+		if (toRetry != null) {
+			long sendTime = System.nanoTime();
+			for (InFlight message : toRetry) {
+				for (int i = 0; i < message.requests.size(); i++)
+					message.requests.get(i).sendTime = sendTime;
+				retryCount++;
+				send(message);
+			}
+		}
+	}
+	
+	/** Replace socket with a fresh, connected one; anything queued on the old one is dropped (sockets don't linger, see ZMQContextManager). */
+	@Override
+	protected void reconnect() {
+		resetSocket();
+		connect();
+		reconnectCount++;
+	}
+	
+	private void connect() {
+		socket.connect(serverAddress);
+		poller = new ZMQ.Poller(1);
+		poller.register(socket, ZMQ.Poller.POLLIN);
+	}
+	
+	private void failInFlight(Throwable cause) {
+		Iterator<InFlight> it = inFlight.values().iterator();
+		while (it.hasNext()) {
+			failRequests(it.next().requests, cause);
+			it.remove();
+		}
+	}
+	
+	private static byte[] encodeRequestId(int requestId) {
+		return new byte[] { (byte) (requestId >>> 24), (byte) (requestId >>> 16), (byte) (requestId >>> 8), (byte) requestId };
+	}
+	
+	private static int decodeRequestId(byte[] idFrame) {
+		return ((idFrame[0] & 0xff) << 24) | ((idFrame[1] & 0xff) << 16) | ((idFrame[2] & 0xff) << 8) | (idFrame[3] & 0xff);
+	}
+}
@@ -1,11 +1,20 @@
 package edu.ncsu.ieee.botcontrol;
 
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQException;
 
 import android.util.Log;
 
-/** ZMQ request-reply server with default echo behavior that can be customized by attaching a request listener. */
+/**
+ * ZMQ request-reply server with default echo behavior that can be customized by attaching a request listener.
+ *
+ * Requests are accepted on a ROUTER socket and shared out over an in-process DEALER socket to a pool of REP workers, so several
+ * requests can be serviced at once (e.g. from a pipelining client). Each response can be delayed according to a DelayModel,
+ * to stand in for the real bot's response times. Configure with setters before calling start().
+ */
 public class ZMQServerThread extends ZMQThread {
 	private static final String TAG = "ZMQServerThread";
 	
@@ -14,41 +23,203 @@ public class ZMQServerThread extends ZMQThread {
 	
 	private static final String SERVER_BIND_HOST = "0.0.0.0"; // host address server listens on
 	private static final int SERVER_RESPONSE_DELAY = 500; // ms; can be used to throttle requests from blocking clients
+	private static final String WORKERS_ADDRESS = "inproc://server-workers-"; // backend address workers connect to (+ server no.; the context is shared)
+	private static final AtomicInteger serverCount = new AtomicInteger();
 	
 	public interface OnRequestListener {
 		public String onRequest(String request);
 	}
 	
-	private OnRequestListener onRequestListener = null;
+	/** Creates a separate listener for each worker, e.g. when listeners keep per-request state and are not thread-safe. */
+	public interface OnRequestListenerFactory {
+		public OnRequestListener createOnRequestListener(int worker);
+	}
+	
+	/** Distribution of response delays (ms). */
+	public static class DelayModel {
+		public static final int FIXED = 0;
+		public static final int JITTERED = 1;
+		public static final int HEAVY_TAIL = 2;
+		
+		public final int kind;
+		private final long base; // ms; fixed delay, mean (jittered) or min. (heavy-tail)
+		private final long jitter; // ms; max. deviation from mean (jittered)
+		private final double alpha; // tail index (heavy-tail); lower means a heavier tail
+		private final long max; // ms; cap (heavy-tail)
+		
+		private DelayModel(int kind, long base, long jitter, double alpha, long max) {
+			this.kind = kind;
+			this.base = base;
+			this.jitter = jitter;
+			this.alpha = alpha;
+			this.max = max;
+		}
+		
+		/** Same delay every time (0 for none). */
+		public static DelayModel fixed(long delay) {
+			return new DelayModel(FIXED, Math.max(0, delay), 0, 0, 0);
+		}
+		
+		/** Uniformly distributed in [mean - jitter, mean + jitter] (never negative). */
+		public static DelayModel jittered(long mean, long jitter) {
+			return new DelayModel(JITTERED, Math.max(0, mean), Math.max(0, jitter), 0, 0);
+		}
+		
+		/**
+		 * Pareto distributed: at least min, mostly close to it, with rare long delays (e.g. Wi-Fi retries, a busy bot), capped at max.
+		 * E.g. with alpha = 2, 1% of responses take more than 10 * min; with alpha = 1.5, 1% take more than ~21 * min.
+		 */
+		public static DelayModel heavyTail(long min, double alpha, long max) {
+			if (min <= 0 || alpha <= 0 || max < min)
+				throw new IllegalArgumentException("Invalid heavy-tail delay: min " + min + ", alpha " + alpha + ", max " + max);
+			return new DelayModel(HEAVY_TAIL, min, 0, alpha, max);
+		}
+		
+		/** Draw the next delay, in ms. */
+		public long next(Random random) {
+			switch (kind) {
+			case JITTERED:
+				return Math.max(0, base - jitter + (long) (random.nextDouble() * (2 * jitter + 1)));
+			case HEAVY_TAIL:
+				return Math.min(max, (long) (base / Math.pow(1.0 - random.nextDouble(), 1.0 / alpha)));
+			default:
+				return base;
+			}
+		}
+		
+		@Override
+		public String toString() {
+			switch (kind) {
+			case JITTERED:
+				return base + " +/- " + jitter + " ms";
+			case HEAVY_TAIL:
+				return "heavy-tail (min " + base + " ms, alpha " + alpha + ", max " + max + " ms)";
+			default:
+				return base + " ms";
+			}
+		}
+	}
+	
+	/** Services requests handed out by the server thread, one at a time. */
+	private class Worker extends Thread {
+		private final int index;
+		private final ZMQ.Socket workerSocket;
+		private final OnRequestListener workerListener; // null: use the server's shared listener
+		private final Random random;
+		
+		Worker(int index) {
+			super(TAG + "-worker-" + index);
+			this.index = index;
+			workerSocket = ZMQContextManager.openSocket(ZMQ.REP);
+			workerSocket.setReceiveTimeOut(WAKE_INTERVAL);
+			workerListener = (onRequestListenerFactory != null ? onRequestListenerFactory.createOnRequestListener(index) : null);
+			random = new Random(System.nanoTime() + index);
+		}
+		
+		@Override
+		public void run() {
+			workerSocket.connect(workersAddress);
+			while(!isTerminating()) {
+				try {
+					byte[] request = workerSocket.recv(); // block for request (times out every WAKE_INTERVAL ms, to check if terminated)
+					if (request == null)
+						continue;
+					String requestStr = new String(request);
+					Log.d(TAG, "run(): [" + index + "] Received: " + requestStr);
+					OnRequestListener listener = (workerListener != null ? workerListener : onRequestListener);
+					String reply = (listener != null ? listener.onRequest(requestStr) : requestStr); // echo if no listener is set
+					long delay = delayModel.next(random);
+					if (delay > 0)
+						Thread.sleep(delay); // delay response
+					Log.d(TAG, "run(): [" + index + "] Sending: " + reply);
+					workerSocket.send(reply);
+				} catch(InterruptedException e) {
+					Log.d(TAG, "run(): [" + index + "] Interrupted!");
+					break;
+				} catch(ZMQException e) {
+					Log.d(TAG, "run(): [" + index + "] ZMQException (expected - ZMQ context terminated): " + e);
+					if(e.getErrorCode () == ZMQ.Error.ETERM.getCode()) {
+						break;
+					}
+				}
+			}
+			ZMQContextManager.closeSocket(workerSocket);
+		}
+	}
+	
+	private final String workersAddress = WORKERS_ADDRESS + serverCount.getAndIncrement();
+	
+	private volatile OnRequestListener onRequestListener = null;
+	private OnRequestListenerFactory onRequestListenerFactory = null;
+	private String bindHost = SERVER_BIND_HOST;
+	private int port = SERVER_PORT;
+	private int numWorkers = 1;
+	private volatile DelayModel delayModel = DelayModel.fixed(SERVER_RESPONSE_DELAY);
 	
 	public ZMQServerThread() {
-		super(ZMQ.REP);
+		super(ZMQ.ROUTER);
 	}
 	
+	/** Listener shared by all workers (must be thread-safe if there is more than one); used unless a factory is set. */
 	public void setOnRequestListener(OnRequestListener listener) {
 		onRequestListener = listener;
 	}
 	
+	/** Give each worker its own listener instead of a shared one. Call before start(). */
+	public void setOnRequestListenerFactory(OnRequestListenerFactory factory) {
+		onRequestListenerFactory = factory;
+	}
+	
+	/** Host address (e.g. "0.0.0.0", "127.0.0.1") and port to listen on. Call before start(). */
+	public void setBindAddress(String host, int port) {
+		this.bindHost = host;
+		this.port = port;
+	}
+	
+	/** No. of requests that can be serviced (and delayed) at once. Call before start(). */
+	public void setWorkerCount(int numWorkers) {
+		if (numWorkers < 1)
+			throw new IllegalArgumentException("Invalid worker count: " + numWorkers);
+		this.numWorkers = numWorkers;
+	}
+	
+	/** How long to delay each response; can be changed while running. */
+	public void setDelayModel(DelayModel model) {
+		delayModel = model;
+	}
+	
+	public DelayModel getDelayModel() {
+		return delayModel;
+	}
+	
 	@Override
 	public void run() {
-		// Bind socket to an address to start listening
-		String serverBindAddress = SERVER_PROTOCOL + "://" + SERVER_BIND_HOST + ":" + SERVER_PORT;
+		// Bind socket to an address to start listening, and backend socket for workers
+		String serverBindAddress = SERVER_PROTOCOL + "://" + bindHost + ":" + port;
 		socket.bind(serverBindAddress);
-		Log.i(TAG, "run(): Listening at " + serverBindAddress);
+		ZMQ.Socket workersSocket = ZMQContextManager.openSocket(ZMQ.DEALER);
+		workersSocket.bind(workersAddress);
+		Log.i(TAG, "run(): Listening at " + serverBindAddress + " (" + numWorkers + " worker(s), response delay: " + delayModel + ")");
+		
+		// Start workers
+		Worker[] workers = new Worker[numWorkers];
+		for (int i = 0; i < numWorkers; i++) {
+			workers[i] = new Worker(i);
+			workers[i].start();
+		}
 		
-		// Loop to service requests
-		while(!isInterrupted()) {
+		// Shuttle requests to workers and replies back, till terminated
+		ZMQ.Poller poller = new ZMQ.Poller(2);
+		poller.register(socket, ZMQ.Poller.POLLIN);
+		poller.register(workersSocket, ZMQ.Poller.POLLIN);
+		while(!isTerminating()) {
 			try {
-				byte[] request = socket.recv(); // block for request
-				String requestStr = new String(request);
-				Log.d(TAG, "run(): Received: " + requestStr);
-				String reply = (onRequestListener != null ? onRequestListener.onRequest(requestStr) : requestStr); // echo if no listener is set
-				Thread.sleep(SERVER_RESPONSE_DELAY); // delay response
-				Log.d(TAG, "run(): Sending: " + reply);
-				socket.send(reply);
-			} catch(InterruptedException e) {
-				Log.d(TAG, "run(): Interrupted!");
-				break;
+				if (poller.poll(WAKE_INTERVAL) <= 0)
+					continue;
+				if (poller.pollin(0))
+					forward(socket, workersSocket);
+				if (poller.pollin(1))
+					forward(workersSocket, socket);
 			} catch(ZMQException e) {
 				Log.d(TAG, "run(): ZMQException (expected - ZMQ context terminated): " + e);
 				if(e.getErrorCode () == ZMQ.Error.ETERM.getCode()) {
@@ -57,9 +228,32 @@ public class ZMQServerThread extends ZMQThread {
 			}
 		}
 		
-		// Close socket
-		Log.d(TAG, "run(): Closing socket...");
-		socket.close();
+		// Wait for workers to close their sockets, and close ours
+		for (Worker worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Log.w(TAG, "run(): Interrupted while waiting for workers to finish");
+				break;
+			}
+		}
+		Log.d(TAG, "run(): Closing sockets...");
+		ZMQContextManager.closeSocket(workersSocket);
+		closeSocket();
 		Log.d(TAG, "run(): Done.");
 	}
-}
\ No newline at end of file
+	
+	/** Pass all queued messages (with all their frames) from one socket to the other. */
+	private static void forward(ZMQ.Socket from, ZMQ.Socket to) {
+		byte[] frame;
+		while ((frame = from.recv(ZMQ.DONTWAIT)) != null) {
+			boolean more = from.hasReceiveMore();
+			to.send(frame, more ? ZMQ.SNDMORE : 0);
+			while (more) {
+				frame = from.recv();
+				more = from.hasReceiveMore();
+				to.send(frame, more ? ZMQ.SNDMORE : 0);
+			}
+		}
+	}
+}
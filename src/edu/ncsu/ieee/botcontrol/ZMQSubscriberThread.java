@@ -1,23 +1,62 @@
 package edu.ncsu.ieee.botcontrol;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQException;
 
 import zmq.ZError;
 import android.util.Log;
 
+/**
+ * Subscribes to published topics and routes each message to the listener registered for its topic.
+ *
+ * Messages can be multipart ([topic][payload]) or single frame ("topic payload", topic and payload separated by whitespace).
+ * A message is routed to the listener registered for exactly its topic (the whole topic frame, or the first token of a single
+ * frame; e.g. "ir" doesn't match "ir_front"), and payloads are handed over as raw bytes, so no Strings are created per message.
+ * NOTE: The socket's subscriptions are prefix matches, so messages on longer topics may still arrive; they are counted as unrouted.
+ */
 public class ZMQSubscriberThread extends ZMQThread {
 	private static final String TAG = "ZMQSubscriberThread";
-	private static final long loop_delay = 100; // ms; time to wait between requests for updates (we don't want to hog the channel)
+	private static final int max_burst = 256; // max messages drained per cycle, so that a flooding publisher can't starve delivery
 	
 	private String serverAddress = null;
 	
-	public interface OnMessageListener {
-		public void onMessage(String message);
+	public interface OnTopicMessageListener {
+		/** Handle a message on given (registered) topic. NOTE: payload is only valid during this call. */
+		public void onTopicMessage(String topic, byte[] payload, int offset, int length);
+	}
+	
+	/** Registered topic with its listener, and the newest message for it in current drain cycle. */
+	private static class Route {
+		final String topic;
+		final byte[] prefix;
+		final OnTopicMessageListener listener;
+		
+		// Drain cycle state; only used on subscriber thread
+		byte[] latest = null;
+		int latestOffset = 0;
+		
+		volatile long droppedCount = 0; ///< messages superseded by a newer one in the same cycle
+		
+		Route(String topic, OnTopicMessageListener listener) {
+			this.topic = topic;
+			this.prefix = topic.getBytes();
+			this.listener = listener;
+		}
 	}
-	private OnMessageListener listener = null;
+	private final List<Route> routes = new ArrayList<Route>();
 	private String topics[] = null;
 	
+	// Stats (written on this thread, read from any)
+	private volatile long receivedCount = 0;  ///< messages received off the socket
+	private volatile long deliveredCount = 0; ///< messages passed on to listeners
+	private volatile long droppedCount = 0;   ///< messages superseded by a newer one on the same topic
+	private volatile long unroutedCount = 0;  ///< messages that matched no registered topic
+	
 	public ZMQSubscriberThread(String serverProtocol, String serverHost, int serverPort) {
 		this(serverProtocol + "://" + serverHost + ":" + serverPort);
 	}
@@ -33,11 +72,17 @@ public class ZMQSubscriberThread extends ZMQThread {
 		socket.connect(serverAddress);
 		Log.i(TAG, "run(): Connected to " + serverAddress);
 		
-		// Subscribe to set topics
-		if (this.topics == null) {
+		// Subscribe to set topics (or registered topics, if none set)
+		if (this.topics == null && routes.isEmpty()) {
 			socket.subscribe("".getBytes());
 			Log.d(TAG, "run(): Subscribed to all topics");
 		}
+		else if (this.topics == null) {
+			for (Route route : routes) {
+				socket.subscribe(route.prefix);
+				Log.d(TAG, "run(): Subscribed to topic: " + route.topic);
+			}
+		}
 		else {
 			for (String topic : this.topics) {
 				socket.subscribe(topic.getBytes());
@@ -45,18 +90,33 @@ public class ZMQSubscriberThread extends ZMQThread {
 			}
 		}
 		
-		// Listen for topic messages till interrupted
-		while(!isInterrupted()) {
+		// Listen for topic messages till terminated: block for one, then drain whatever else is queued (conflated per topic)
+		while(!isTerminating()) {
 			try {
-				String message = socket.recvStr();
-				Log.d(TAG, "run(): Received: " + message);
-				if (listener != null) {
-					listener.onMessage(message);
+				byte[] frame = socket.recv(); // null if nothing arrived within WAKE_INTERVAL
+				int received = 0;
+				int pending = 0;
+				while (frame != null) {
+					received++;
+					if (route(frame)) {
+						pending++;
+					}
+					frame = received < max_burst ? socket.recv(ZMQ.DONTWAIT) : null;
+				}
+				receivedCount += received;
+				
+				// Deliver newest message per topic
+				int delivered = 0;
+				for (int i = 0; i < routes.size() && delivered < pending; i++) {
+					Route route = routes.get(i);
+					if (route.latest != null) {
+						byte[] payload = route.latest;
+						route.latest = null;
+						delivered++;
+						route.listener.onTopicMessage(route.topic, payload, route.latestOffset, payload.length - route.latestOffset);
+					}
 				}
-				sleep(loop_delay);
-			} catch (InterruptedException e) {
-				Log.d(TAG, "run(): Interrupted!");
-				break;
+				deliveredCount += delivered;
 			} catch(ZMQException e) {
 				Log.d(TAG, "run(): ZMQException (expected - ZMQ context terminated): " + e);
 				if(e.getErrorCode () == ZMQ.Error.ETERM.getCode()) {
@@ -64,16 +124,83 @@ public class ZMQSubscriberThread extends ZMQThread {
 				}
 			} catch (ZError.IOException e) {
 				Log.w(TAG, "run(): Closed by interrupt? Exception: " + e);
-				return; // skip trying to close socket - it'll cause another exception
+				closeSocket(); // returns socket's reference to the shared context (closing it may fail)
+				return;
 			}
 		}
 		
 		// Close socket
 		Log.d(TAG, "run(): Closing socket...");
-		socket.close();
+		closeSocket();
 		Log.d(TAG, "run(): Done.");
 	}
 	
+	/**
+	 * Match a received (topic) frame against registered topics and hold on to its payload till the end of this cycle.
+	 * Reads the payload frame if multipart.
+	 * @return true if this is the first message for its topic in this cycle
+	 */
+	private boolean route(byte[] frame) {
+		byte[] payload = frame;
+		int offset = 0;
+		boolean multipart = socket.hasReceiveMore();
+		if (multipart) {
+			payload = socket.recv(); // rest of a multipart message is already here
+			while (socket.hasReceiveMore()) {
+				socket.recv(); // ignore any extra frames
+			}
+		}
+		
+		Route route = match(frame, multipart);
+		if (route == null) {
+			unroutedCount++;
+			return false;
+		}
+		
+		// Single frame: payload starts after topic token and separating whitespace
+		if (!multipart) {
+			offset = route.prefix.length;
+			while (offset < frame.length && isWhitespace(frame[offset])) {
+				offset++;
+			}
+		}
+		
+		boolean first = (route.latest == null);
+		if (!first) {
+			route.droppedCount++;
+			droppedCount++;
+		}
+		route.latest = payload;
+		route.latestOffset = offset;
+		return first;
+	}
+	
+	/** Find registered topic that is the whole topic frame (multipart), or the frame's first token followed by whitespace or its end. */
+	private Route match(byte[] frame, boolean multipart) {
+		for (int i = 0; i < routes.size(); i++) {
+			Route route = routes.get(i);
+			byte[] prefix = route.prefix;
+			if (prefix.length > frame.length) {
+				continue;
+			}
+			if (prefix.length < frame.length && (multipart || !isWhitespace(frame[prefix.length]))) {
+				continue; // topic continues past prefix (e.g. "ir_front" vs. "ir")
+			}
+			int j = 0;
+			while (j < prefix.length && prefix[j] == frame[j]) {
+				j++;
+			}
+			if (j == prefix.length) {
+				return route;
+			}
+		}
+		return null;
+	}
+	
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+	}
+	
 	/*
 	@Override
 	public void term() {
@@ -90,7 +217,39 @@ public class ZMQSubscriberThread extends ZMQThread {
 		this.topics = topics;
 	}
 	
-	public void setListener(OnMessageListener listener) {
-		this.listener = listener;
+	/** Register a listener for messages on given topic (exact match, see class comment). NOTE: Must be called before thread is started. */
+	public void addTopicListener(String topic, OnTopicMessageListener listener) {
+		if (isAlive()) {
+			Log.w(TAG, "addTopicListener(): Trying to add topic listener after thread has started; ignoring...");
+			return;
+		}
+		routes.add(new Route(topic, listener));
+	}
+	
+	public long getReceivedCount() {
+		return receivedCount;
+	}
+	
+	public long getDeliveredCount() {
+		return deliveredCount;
+	}
+	
+	/** Total messages dropped because a newer message on the same topic arrived in the same cycle. */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+	
+	/** Total messages dropped because they matched no registered topic. */
+	public long getUnroutedCount() {
+		return unroutedCount;
+	}
+	
+	/** Snapshot of dropped message counts per registered topic. */
+	public Map<String, Long> getDropCounts() {
+		Map<String, Long> dropCounts = new HashMap<String, Long>();
+		for (Route route : routes) {
+			dropCounts.put(route.topic, route.droppedCount);
+		}
+		return dropCounts;
 	}
 }
@@ -7,72 +7,96 @@ import android.util.Log;
 
 /**
  * Base class for any thread that uses standard ZMQ patterns.
- * 
+ *
  * Derived classes should:
  * 1) Call through to ZMQThread's constructor, specifying the type of ZMQ socket to open (ZMQ.REQ, ZMQ.REP etc.).
- * 2) Override run(), use the protected socket object, and close() it when done.
- * 3) Exit from run() if (isInterrupted() == true), or on catching an InterruptedException or ZMQException. Remember to close() socket.
- * 
- * NOTE: The cleanup method term() must be called on the thread instance explicitly; this is what triggers the exceptions in run().
+ * 2) Override run(), use the protected socket object, and closeSocket() it when done.
+ * 3) Exit from run() if (isTerminating() == true), or on catching an InterruptedException or ZMQException. Remember to closeSocket().
+ *    Blocking receives on the socket time out every WAKE_INTERVAL ms (recv() returns null), so that run() can check isTerminating().
+ *
+ * Sockets are borrowed from the process-wide context (see ZMQContextManager), so threads are cheap to create and stop.
+ * NOTE: The cleanup method term() must be called on the thread instance explicitly; this is what makes run() exit.
  */
 public class ZMQThread extends Thread {
 	private final String TAG = "ZMQThread";
 	
-	protected ZMQ.Context context = null; ///< Context object managed by ZMQThread; properly terminated by term()
-	protected ZMQ.Socket socket = null;   ///< Socket object to be used and closed by derived classes' run() methods
+	protected static final int WAKE_INTERVAL = 100; // ms; max. time a blocking receive waits before run() checks isTerminating()
 	
-	/** Create ZMQ context and socket of given type. */
+	protected ZMQ.Socket socket = null;   ///< Socket object to be used and closed (closeSocket()) by derived classes' run() methods
+	private final int socketType;
+	private volatile boolean terminating = false;
+	private boolean socketClosed = false;
+	
+	/** Open a socket of given type on the shared ZMQ context. */
 	public ZMQThread(int socketType) {
-		context = ZMQ.context(1);
-		socket = context.socket(socketType);
+		this.socketType = socketType;
+		socket = ZMQContextManager.openSocket(socketType);
+		socket.setReceiveTimeOut(WAKE_INTERVAL);
+	}
+	
+	/** True once term() has been called (or the thread was interrupted); run() should wrap up and exit. */
+	protected boolean isTerminating() {
+		return terminating || isInterrupted();
+	}
+	
+	/** Close socket and return it to the shared context (only the first call has an effect). */
+	protected synchronized void closeSocket() {
+		if (socketClosed)
+			return;
+		socketClosed = true;
+		ZMQContextManager.closeSocket(socket);
 	}
 	
-	/** Terminate ZMQ context. NOTE: This must be called for a clean exit. */
+	/**
+	 * Replace socket with a fresh one of the same type (e.g. a REQ socket stuck waiting for a reply that was lost).
+	 * Anything queued on the old socket is dropped. NOTE: Call from run(); the new socket still needs to be connected/bound.
+	 */
+	protected synchronized void resetSocket() {
+		if (socketClosed)
+			return;
+		ZMQ.Socket oldSocket = socket;
+		socket = ZMQContextManager.openSocket(socketType); // open the new one first, so the shared context is kept alive
+		socket.setReceiveTimeOut(WAKE_INTERVAL);
+		ZMQContextManager.closeSocket(oldSocket);
+	}
+	
+	/** Stop thread and close its socket, waiting for run() to finish (unless called on the UI thread). NOTE: This must be called for a clean exit. */
 	public void term() {
-		// Check if context is already null
-		if (context == null) {
-			Log.w(TAG, "term(): ZMQ context already terminated.");
+		// Check if already terminated
+		if (terminating) {
+			Log.w(TAG, "term(): Already terminated.");
 			return;
 		}
+		terminating = true;
 		
-		// Create a runnable to terminate ZMQ context
+		// Create a runnable to wait for thread to finish
 		Runnable zmqTerminator = new Runnable() {
 			@Override
 			public void run() {
-				// Interrupt thread
-				// NOTE: This may cause a ClosedByInterruptException on socket operations,
+				// NOTE: Interrupting the thread may cause a ClosedByInterruptException on socket operations,
 				//   which is hard to catch because ZMQ.Socket.recv() doesn't declare that it throws this exception!
-				/*
-				if(ZMQThread.this.isAlive()) {
-					Log.d(TAG, "term(): Interrupting thread execution...");
-					ZMQThread.this.interrupt(); // try to interrupt thread execution - may or may not succeed
-					yield(); // let run() respond to (isInterrupted() == true) or InterruptedException (?)
-				}
-				*/
-				
-				// Terminate ZMQ context
-				Log.d(TAG, "term(): Terminating ZMQ context...");
-				context.term();
-				//yield(); // let run() respond to ZMQException (?)
+				//   Instead, run() notices isTerminating() within WAKE_INTERVAL ms and exits on its own.
 				
 				// If not currently running on this ZMQThread, wait till it finishes
-				if (Thread.currentThread() != ZMQThread.this) {
+				if (Thread.currentThread() != ZMQThread.this && ZMQThread.this.isAlive()) {
 					try {
+						Log.d(TAG, "term(): Waiting for thread to finish...");
 						ZMQThread.this.join(); // wait till this ZMQThread actually finishes
 					} catch (InterruptedException e) {
 						Log.e(TAG, "term(): Interrupted while waiting for thread to finish!");
 					}
 				}
 				
-				// Set context variable to null and call it a day
-				context = null;
+				// Close socket in case run() didn't (e.g. thread never started), and call it a day
+				if (!ZMQThread.this.isAlive())
+					closeSocket();
 				Log.d(TAG, "term(): Done.");
 			}
 		};
 		
 		// Check if we are on the Android main (UI) thread
 		if (Looper.myLooper() == Looper.getMainLooper()) {
-			// Start a new thread for terminator to prevent NetworkOnMainThread exception
+			// Start a new thread for terminator to prevent blocking the UI (and NetworkOnMainThread exception)
 			(new Thread(zmqTerminator)).start();
 		}
 		else {
@@ -81,13 +105,13 @@ public class ZMQThread extends Thread {
 		}
 	}
 	
-	/** Ensure ZMQ context has been terminated. NOTE: Call term() explicitly instead of relying on this. */
+	/** Ensure socket has been closed. NOTE: Call term() explicitly instead of relying on this. */
 	@Override
 	protected void finalize() throws Throwable {
-		if (context != null) {
+		if (!terminating) {
 			Log.e(TAG, "finalize(): Cleanup method term() not called yet!");
 			term();
 		}
 		super.finalize();
 	}
-}
\ No newline at end of file
+}